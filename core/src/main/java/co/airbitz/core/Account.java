@@ -30,12 +30,31 @@
  */
 package co.airbitz.core;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.ParsePosition;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import co.airbitz.internal.Jni;
 import co.airbitz.internal.SWIGTYPE_p_bool;
@@ -78,7 +97,15 @@ public class Account {
     private boolean mLoggedIn;
     private List<Wallet> mCachedWallets;
     Engine mEngine;
-    Settings mSettings;
+    volatile Settings mSettings;
+    private volatile int mSettingsVersion;
+    private SingleFlight<Integer, Settings> mSettingsFlight =
+        new SingleFlight<Integer, Settings>();
+    // Shared by every Wallet object, since wallets are rebuilt on reload
+    SingleFlight<String, Transaction> mTransactionFlight =
+        new SingleFlight<String, Transaction>();
+    private List<Settings.OnChangeListener> mSettingsListeners =
+        new CopyOnWriteArrayList<Settings.OnChangeListener>();
 
     /**
      * Account callbacks are used to handle asynchronous events from the core
@@ -166,6 +193,36 @@ public class Account {
         public void sweep(Wallet wallet, Transaction tx, long amountSwept);
     }
     Callbacks mCallbacks;
+    private CallbackQueue mCallbackQueue = new CallbackQueue();
+
+    /**
+     * CallbackStats holds counters for the callback delivery queue. Events
+     * are coalesced when a newer event of the same kind replaces a pending
+     * one, and dropped when the queue is full.
+     */
+    public static class CallbackStats {
+        public long delivered;
+        public long coalesced;
+        public long dropped;
+        public int queued;
+    }
+
+    /**
+     * Progress of the initial wallet sync. Each wallet moves from loading to
+     * watching, then to addresses checked, and is synced once its data sync
+     * has also finished.
+     */
+    public static class SyncProgress {
+        public int walletCount;
+        public int loading;
+        public int watching;
+        public int addressesChecked;
+        public int synced;
+        /** Estimated milliseconds until all wallets are synced, or -1 if unknown */
+        public long etaMillis;
+        /** True once {@link Callbacks#walletsLoaded walletsLoaded} has fired */
+        public boolean loaded;
+    }
 
     Account(AirbitzCore api, String username, String password) {
         mApi = api;
@@ -182,10 +239,44 @@ public class Account {
     }
 
     /**
-     * Define callbacks that will handle asynchronous events.
+     * Define callbacks that will handle asynchronous events. Callbacks are
+     * delivered in order on a background thread owned by the account.
      */
     public void callbacks(Callbacks callbacks) {
-        mCallbacks = callbacks;
+        callbacks(callbacks, null);
+    }
+
+    /**
+     * Define callbacks that will handle asynchronous events.
+     * @param callbacks the callbacks, or null to stop receiving events
+     * @param executor the executor callbacks are delivered on. Callbacks are
+     *      delivered one at a time, in order. If null, a background thread
+     *      owned by the account is used.
+     */
+    public void callbacks(Callbacks callbacks, Executor executor) {
+        mCallbackQueue.target(callbacks, executor);
+        mCallbacks = callbacks != null ? mCallbackQueue : null;
+    }
+
+    /**
+     * Retrieve counters for the callback delivery queue.
+     * @return the callback queue counters
+     */
+    public CallbackStats callbackStats() {
+        CallbackStats stats = new CallbackStats();
+        stats.delivered = mCallbackQueue.delivered();
+        stats.coalesced = mCallbackQueue.coalesced();
+        stats.dropped = mCallbackQueue.dropped();
+        stats.queued = mCallbackQueue.queued();
+        return stats;
+    }
+
+    /**
+     * Returns how many of the account's wallets have finished syncing.
+     * @return a snapshot of the sync progress
+     */
+    public SyncProgress syncProgress() {
+        return mEngine.syncProgress();
     }
 
     /**
@@ -237,18 +328,60 @@ public class Account {
      * @return the settings
      */
     public Settings settings() {
-        if (mSettings != null) {
-            return mSettings;
+        Settings settings = mSettings;
+        if (settings != null) {
+            return settings;
         }
+        int version = mSettingsVersion;
         try {
-            mSettings = new Settings(this).load();
-            return mSettings;
+            // Concurrent callers share one load, unless invalidated in between
+            settings = mSettingsFlight.execute(version, new Callable<Settings>() {
+                public Settings call() throws AirbitzException {
+                    return new Settings(Account.this).load();
+                }
+            });
+            synchronized (this) {
+                // Keep a newer reload if one landed while we were loading
+                if (version == mSettingsVersion && mSettings == null) {
+                    mSettings = settings;
+                }
+            }
+            return settings;
         } catch (AirbitzException e) {
             AirbitzCore.loge("settings error:");
             return null;
         }
     }
 
+    /**
+     * Drops the cached settings so the next {@link #settings settings} call
+     * reloads them. Only needed when the settings changed outside of this
+     * device; local saves update the cached settings in place.
+     */
+    synchronized void invalidateSettings() {
+        mSettings = null;
+        mSettingsVersion++;
+    }
+
+    /**
+     * Register a listener for settings changes. Listeners are called on the
+     * thread that committed the change, or on the engine thread for changes
+     * synced from another device.
+     */
+    public void addSettingsListener(Settings.OnChangeListener listener) {
+        mSettingsListeners.add(listener);
+    }
+
+    public void removeSettingsListener(Settings.OnChangeListener listener) {
+        mSettingsListeners.remove(listener);
+    }
+
+    void settingsChanged(Settings settings, Map<String, Settings.Change> changes) {
+        for (Settings.OnChangeListener listener : mSettingsListeners) {
+            listener.onChange(settings, changes);
+        }
+    }
+
     /**
      * Check if the input password matches the account password.
      * @param password the password to test
@@ -300,9 +433,7 @@ public class Account {
      * this will setup the account PIN package as well.
      */
     public void pin(String pin) throws AirbitzException {
-        Settings settings = settings();
-        settings.settings().setSzPIN(pin);
-        settings.save();
+        settings().edit().pin(pin).commit();
 
         tABC_Error error = new tABC_Error();
         core.ABC_PinSetup(username(), password(), pin, error);
@@ -376,9 +507,7 @@ public class Account {
      * this will setup the account PIN package as well.
      */
     void pinLoginSetup() throws AirbitzException {
-        Settings settings = settings();
-        settings.settings().setBDisablePINLogin(false);
-        settings.save();
+        settings().edit().disablePinLogin(false).commit();
     }
 
     /**
@@ -386,9 +515,7 @@ public class Account {
      * this will setup the account PIN package as well.
      */
     void pinLoginDisable() throws AirbitzException {
-        Settings settings = settings();
-        settings.settings().setBDisablePINLogin(true);
-        settings.save();
+        settings().edit().disablePinLogin(true).commit();
     }
 
     /**
@@ -397,6 +524,12 @@ public class Account {
      */
     public void logout() {
         mEngine.stop();
+        mCallbackQueue.shutdown();
+        synchronized (this) {
+            if (mWorkers != null) {
+                mWorkers.shutdownNow();
+            }
+        }
         mLoggedIn = false;
         mApi.mAccounts.remove(this);
         mApi.destroy();
@@ -408,6 +541,42 @@ public class Account {
      * @return list of wallet ids
      */
     public List<String> walletIds() {
+        int version;
+        synchronized (mWalletIdsLock) {
+            if (mCachedWalletIds != null) {
+                return new ArrayList<String>(mCachedWalletIds);
+            }
+            version = mWalletIdsVersion;
+        }
+        List<String> uuids = mWalletIdsFlight.run(version, new Callable<List<String>>() {
+            public List<String> call() {
+                return loadWalletIds();
+            }
+        });
+        if (uuids == null) {
+            return new ArrayList<String>();
+        }
+        synchronized (mWalletIdsLock) {
+            // Don't cache a list that was invalidated while we were loading it
+            if (version == mWalletIdsVersion) {
+                mCachedWalletIds = uuids;
+            }
+        }
+        return new ArrayList<String>(uuids);
+    }
+
+    /**
+     * Drops the cached wallet ids. Called when a wallet is created, removed
+     * or reordered, or when the account changed remotely.
+     */
+    void invalidateWalletIds() {
+        synchronized (mWalletIdsLock) {
+            mCachedWalletIds = null;
+            mWalletIdsVersion++;
+        }
+    }
+
+    private List<String> loadWalletIds() {
         tABC_Error Error = new tABC_Error();
         List<String> uuids = new ArrayList<String>();
 
@@ -417,8 +586,10 @@ public class Account {
         SWIGTYPE_p_long aUUIDS = core.new_longp();
         SWIGTYPE_p_p_p_char pppUUIDs = core.longp_to_pppChar(aUUIDS);
 
+        long callStart = Instrumentation.start();
         tABC_CC result = core.ABC_GetWalletUUIDs(mUsername, mPassword,
                 pppUUIDs, pUCount, Error);
+        Instrumentation.call("core.ABC_GetWalletUUIDs", callStart);
         if (tABC_CC.ABC_CC_Ok == result)
         {
             if (core.longp_value(aUUIDS)!=0)
@@ -434,10 +605,22 @@ public class Account {
                     }
                 }
             }
+            return uuids;
         }
-        return uuids;
+        return null;
     }
 
+    private final Object mWalletIdsLock = new Object();
+    private List<String> mCachedWalletIds;
+    private int mWalletIdsVersion;
+    private SingleFlight<Integer, List<String>> mWalletIdsFlight =
+        new SingleFlight<Integer, List<String>>();
+
+    private Map<String, WalletHistory> mHistories =
+        new ConcurrentHashMap<String, WalletHistory>();
+    private volatile String mFocusedWalletId;
+    private ExecutorService mWorkers;
+
     static Object WALLET_LOCK = new Object();
     /**
      * Returns a list of the wallets for this account, include Archived
@@ -459,6 +642,312 @@ public class Account {
         }
     }
 
+    /**
+     * Replace a single wallet in the cached wallet list.
+     * @return true if the wallet was found and replaced
+     */
+    synchronized boolean updateWallet(Wallet wallet) {
+        synchronized(WALLET_LOCK) {
+            if (mCachedWallets == null) {
+                return false;
+            }
+            List<Wallet> wallets = new ArrayList<Wallet>(mCachedWallets);
+            for (int i = 0; i < wallets.size(); i++) {
+                if (wallets.get(i).id().equals(wallet.id())) {
+                    wallets.set(i, wallet);
+                    mCachedWallets = wallets;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    WalletHistory history(String walletId) {
+        WalletHistory history = mHistories.get(walletId);
+        if (history == null) {
+            synchronized (mHistories) {
+                history = mHistories.get(walletId);
+                if (history == null) {
+                    history = new WalletHistory();
+                    mHistories.put(walletId, history);
+                }
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Drop a removed wallet's history, along with its search, balance and
+     * aggregate indexes.
+     */
+    void removeHistory(String walletId) {
+        synchronized (mHistories) {
+            mHistories.remove(walletId);
+        }
+        if (walletId.equals(mFocusedWalletId)) {
+            mFocusedWalletId = null;
+        }
+    }
+
+    /**
+     * Tell the engine which wallet the app is showing. Its transaction
+     * history is loaded in the background right away and again whenever it
+     * changes, and {@link Callbacks#walletChanged walletChanged} is called
+     * once it is ready. Other wallets load their history on first use.
+     * @param wallet the wallet being shown, or null for none
+     */
+    public void focusWallet(Wallet wallet) {
+        mFocusedWalletId = wallet != null ? wallet.id() : null;
+        mEngine.loadFocusedHistory();
+    }
+
+    String focusedWalletId() {
+        return mFocusedWalletId;
+    }
+
+    /**
+     * A transaction found by {@link #search search}, with the wallet it
+     * belongs to.
+     */
+    public static class SearchResult {
+        public final Wallet wallet;
+        public final Transaction transaction;
+
+        SearchResult(Wallet wallet, Transaction transaction) {
+            this.wallet = wallet;
+            this.transaction = transaction;
+        }
+    }
+
+    /**
+     * Search the transactions of every wallet in the account. Wallets are
+     * searched in parallel with the same rules as {@link
+     * Wallet#transactionsSearch(String, int, int) transactionsSearch}, and
+     * the results are merged newest first.
+     * @param query the words to search for
+     * @param limit the most results to return, or 0 for all of them
+     * @return the matching transactions tagged with their wallet
+     */
+    public List<SearchResult> search(final String query, final int limit) {
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        List<Wallet> wallets = wallets();
+        if (wallets == null || wallets.isEmpty()) {
+            return results;
+        }
+        // No wallet can contribute more than limit results
+        List<List<Transaction>> matches = forEachWallet(wallets,
+                new WalletTask<List<Transaction>>() {
+            public List<Transaction> run(Wallet wallet) {
+                return wallet.transactionsSearch(query, limit, 0);
+            }
+        });
+
+        PriorityQueue<MergeCursor> queue = new PriorityQueue<MergeCursor>();
+        for (int i = 0; i < wallets.size(); i++) {
+            List<Transaction> list = matches.get(i);
+            if (list != null && !list.isEmpty()) {
+                queue.add(new MergeCursor(wallets.get(i), list));
+            }
+        }
+        while (!queue.isEmpty() && (limit <= 0 || results.size() < limit)) {
+            MergeCursor cursor = queue.poll();
+            results.add(new SearchResult(cursor.wallet, cursor.current()));
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Export the transactions of every wallet in the account as a single
+     * ledger, oldest first, with a wallet column. Each wallet's rows are
+     * filtered and converted in parallel and then merged by date while they
+     * are streamed to the file.
+     * @param file the file to write, replaced if it exists
+     * @param options the format, range, categories and fiat currency of the export
+     * @return the number of transactions written
+     */
+    public int export(File file, ExportOptions options) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        boolean done = false;
+        try {
+            int written = export(out.getChannel(), options);
+            done = true;
+            return written;
+        } finally {
+            out.close();
+            if (!done) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Export the transactions of every wallet in the account as a single
+     * ledger to an output stream. The stream is not closed.
+     * @return the number of transactions written
+     */
+    public int export(OutputStream out, ExportOptions options) throws IOException {
+        return export(Channels.newChannel(out), options);
+    }
+
+    /**
+     * Export the transactions of every wallet in the account as a single
+     * ledger to a channel. The channel is not closed. A QBO ledger of
+     * wallets in different currencies needs {@link
+     * ExportOptions#fiatCurrency fiatCurrency} set, since a statement has
+     * only one currency.
+     * @return the number of transactions written
+     * @throws IllegalArgumentException for a QBO ledger of mixed currencies
+     *      without a fiat currency
+     */
+    public int export(WritableByteChannel channel, ExportOptions options) throws IOException {
+        final TransactionExporter exporter = new TransactionExporter(options);
+        List<Wallet> wallets = wallets();
+        if (wallets == null) {
+            wallets = new ArrayList<Wallet>();
+        }
+        List<List<TransactionExporter.Row>> sections = forEachWallet(wallets,
+                new WalletTask<List<TransactionExporter.Row>>() {
+            public List<TransactionExporter.Row> run(Wallet wallet) {
+                return exporter.prepare(wallet);
+            }
+        });
+        // A ledger missing a wallet is worse than no ledger
+        for (int i = 0; i < sections.size(); i++) {
+            if (sections.get(i) == null) {
+                throw new IOException("Unable to export wallet " + wallets.get(i).id());
+            }
+        }
+        return exporter.write(wallets, sections, username(), channel);
+    }
+
+    /**
+     * Total the transactions of every wallet in the account by category and
+     * period. Wallets are aggregated in parallel, with the same rules as
+     * {@link Wallet#aggregate Wallet.aggregate}.
+     * @param categoryDepth how many levels of the category to group by, or
+     *      0 to ignore categories
+     * @param period the length of the periods to group by
+     * @param byWallet true to keep each wallet's totals apart, false to
+     *      combine them
+     * @return the totals, oldest period first
+     */
+    public List<Aggregate> aggregate(final int categoryDepth, final Aggregate.Period period,
+            boolean byWallet) {
+        List<Aggregate> results = new ArrayList<Aggregate>();
+        List<Wallet> wallets = wallets();
+        if (wallets == null || wallets.isEmpty()) {
+            return results;
+        }
+        List<List<Aggregate>> totals = forEachWallet(wallets,
+                new WalletTask<List<Aggregate>>() {
+            public List<Aggregate> run(Wallet wallet) {
+                return wallet.aggregate(categoryDepth, period);
+            }
+        });
+        Map<String, Aggregate> combined = new HashMap<String, Aggregate>();
+        for (List<Aggregate> list : totals) {
+            if (list == null) {
+                continue;
+            }
+            for (Aggregate aggregate : list) {
+                if (byWallet) {
+                    results.add(aggregate);
+                    continue;
+                }
+                String key = aggregate.periodStart.getTime() + ":" + aggregate.category;
+                Aggregate group = combined.get(key);
+                if (group == null) {
+                    combined.put(key, aggregate.copy(null));
+                } else {
+                    group.add(aggregate, 1);
+                }
+            }
+        }
+        results.addAll(combined.values());
+        Collections.sort(results, Aggregate.ORDER);
+        return results;
+    }
+
+    /*
+     * Walks one wallet's newest first transaction list during a k-way merge.
+     */
+    static class MergeCursor implements Comparable<MergeCursor> {
+        final Wallet wallet;
+        private final List<Transaction> mList;
+        private int mPos = 0;
+
+        MergeCursor(Wallet wallet, List<Transaction> list) {
+            this.wallet = wallet;
+            mList = list;
+        }
+
+        Transaction current() {
+            return mList.get(mPos);
+        }
+
+        boolean advance() {
+            return ++mPos < mList.size();
+        }
+
+        public int compareTo(MergeCursor other) {
+            return other.current().date().compareTo(current().date());
+        }
+    }
+
+    interface WalletTask<T> {
+        public T run(Wallet wallet) throws Exception;
+    }
+
+    /**
+     * Runs a task for each wallet on the account's worker threads and waits
+     * for all of them.
+     * @return the results in the same order as the wallets, with null for
+     *      any wallet whose task failed
+     */
+    <T> List<T> forEachWallet(List<Wallet> wallets, final WalletTask<T> task) {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        ExecutorService workers = workers();
+        for (final Wallet wallet : wallets) {
+            futures.add(workers.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    return task.run(wallet);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<T>();
+        for (int i = 0; i < futures.size(); i++) {
+            T result = null;
+            try {
+                result = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                AirbitzCore.loge("Wallet task failed for {}: {}",
+                    wallets.get(i).id(), e.getCause());
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    private synchronized ExecutorService workers() {
+        if (mWorkers == null || mWorkers.isShutdown()) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            mWorkers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Account worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mWorkers;
+    }
+
     /**
      * Returns a list of the non-archived wallets for this account
      * @return list of non-archived wallets
@@ -485,7 +974,7 @@ public class Account {
      * @return true if wallet was successfully created
      */
     public boolean createWallet(String walletName, String currency) {
-        AirbitzCore.logi("createWallet(" + walletName + "," + currency + ")");
+        AirbitzCore.logi("createWallet({},{})", walletName, currency);
         tABC_Error pError = new tABC_Error();
 
         SWIGTYPE_p_long lp = core.new_longp();
@@ -496,6 +985,7 @@ public class Account {
                 mUsername, mPassword,
                 walletName, currencyNum, ppChar, pError);
         if (result == tABC_CC.ABC_CC_Ok) {
+            invalidateWalletIds();
             mEngine.startWatchers();
             mEngine.requestExchangeRateUpdate(this, currency);
             reloadWallets();
@@ -605,6 +1095,7 @@ public class Account {
         if (result != tABC_CC.ABC_CC_Ok) {
             AirbitzCore.loge("Error: CoreBridge.setWalletOrder" + error.getSzDescription());
         }
+        invalidateWalletIds();
         reloadWallets();
     }
 
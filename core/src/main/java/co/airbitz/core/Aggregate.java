@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Aggregate holds the totals of a group of transactions, grouped by
+ * category prefix, period and wallet. Use {@link Wallet#aggregate
+ * Wallet.aggregate} or {@link Account#aggregate Account.aggregate} to build
+ * spending reports such as totals per category per month.
+ */
+public class Aggregate {
+    /**
+     * The length of the periods that transactions are grouped into.
+     * Periods start at midnight local time, weeks on the locale's first
+     * day of the week.
+     */
+    public enum Period {
+        DAY,
+        WEEK,
+        MONTH,
+        YEAR,
+        ALL;
+
+        /**
+         * @return the start of the period containing the time, or the
+         *      epoch for ALL
+         */
+        long start(Calendar calendar, long time) {
+            if (this == ALL) {
+                return 0;
+            }
+            calendar.setTimeInMillis(time);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            if (this == WEEK) {
+                calendar.set(Calendar.DAY_OF_WEEK, calendar.getFirstDayOfWeek());
+                if (calendar.getTimeInMillis() > time) {
+                    calendar.add(Calendar.WEEK_OF_YEAR, -1);
+                }
+            } else if (this == MONTH) {
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+            } else if (this == YEAR) {
+                calendar.set(Calendar.DAY_OF_YEAR, 1);
+            }
+            return calendar.getTimeInMillis();
+        }
+    }
+
+    /** The wallet the totals belong to, or null when wallets are combined */
+    public String walletId;
+    /** The category prefix, such as "Expense:Food", or "" for none */
+    public String category;
+    /** The start of the period */
+    public Date periodStart;
+    public int count;
+    /** Satoshis received */
+    public long satoshiIn;
+    /** Satoshis sent, as a positive number, including fees */
+    public long satoshiOut;
+    /** Miner fees paid on sends */
+    public long minerFees;
+    /** Provider fees paid on sends */
+    public long providerFees;
+    /** Fiat value of receives, as recorded on each transaction */
+    public double fiatIn;
+    /** Fiat value of sends, as a positive number */
+    public double fiatOut;
+
+    // Fiat is summed in hundredths so that adding and later taking out the
+    // same transactions leaves no rounding drift
+    long fiatInCents;
+    long fiatOutCents;
+
+    Aggregate(String walletId, String category, Date periodStart) {
+        this.walletId = walletId;
+        this.category = category;
+        this.periodStart = periodStart;
+    }
+
+    Aggregate copy(String walletId) {
+        Aggregate copy = new Aggregate(walletId, category, periodStart);
+        copy.add(this, 1);
+        return copy;
+    }
+
+    void add(Aggregate other, int sign) {
+        count += sign * other.count;
+        satoshiIn += sign * other.satoshiIn;
+        satoshiOut += sign * other.satoshiOut;
+        minerFees += sign * other.minerFees;
+        providerFees += sign * other.providerFees;
+        fiatInCents += sign * other.fiatInCents;
+        fiatOutCents += sign * other.fiatOutCents;
+        fiatIn = fiatInCents / 100.0;
+        fiatOut = fiatOutCents / 100.0;
+    }
+
+    /**
+     * Cut a category down to its first depth levels, so that with a depth
+     * of 1 "Expense:Food:Lunch" becomes "Expense".
+     */
+    static String categoryPrefix(String category, int depth) {
+        if (category == null || depth <= 0) {
+            return "";
+        }
+        int end = -1;
+        for (int i = 0; i < depth; i++) {
+            end = category.indexOf(':', end + 1);
+            if (end < 0) {
+                return category;
+            }
+        }
+        return category.substring(0, end);
+    }
+
+    static final Comparator<Aggregate> ORDER = new Comparator<Aggregate>() {
+        public int compare(Aggregate a, Aggregate b) {
+            int cmp = a.periodStart.compareTo(b.periodStart);
+            if (cmp == 0) {
+                cmp = a.category.compareTo(b.category);
+            }
+            if (cmp == 0 && a.walletId != null && b.walletId != null) {
+                cmp = a.walletId.compareTo(b.walletId);
+            }
+            return cmp;
+        }
+    };
+}
@@ -37,6 +37,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import co.airbitz.internal.Jni;
@@ -187,15 +188,41 @@ public class AirbitzCore {
     }
 
     private static final LogLevel MIN_LEVEL = LogLevel.INFO;
+    private static final AsyncLogger sLogger = new AsyncLogger();
 
     /**
-     * Log a message at a specified log level.
+     * Determines if messages at a log level will be written. Use this to
+     * skip building expensive log messages.
+     * @param level the log level to check
+     * @return true if messages at this level are written
+     */
+    public static boolean isLoggable(LogLevel level) {
+        return level.value <= MIN_LEVEL.value;
+    }
+
+    /**
+     * Log a message at a specified log level. Messages are written to the
+     * core log on a background thread.
      * @param level of the log message (DEBUG, INFO, WARING, ERROR)
      * @param debugString to write to logs
      */
     public static void log(LogLevel level, String debugString) {
-        if (level.value <= MIN_LEVEL.value) {
-            core.ABC_Log(debugString);
+        if (isLoggable(level)) {
+            sLogger.log(debugString, null);
+        }
+    }
+
+    /**
+     * Log a parameterized message at a specified log level. Each "{}" in the
+     * format is replaced by the next argument, and the message is only
+     * formatted if the level is enabled.
+     * @param level of the log message (DEBUG, INFO, WARING, ERROR)
+     * @param format the message with "{}" placeholders
+     * @param args the values for the placeholders
+     */
+    public static void log(LogLevel level, String format, Object... args) {
+        if (isLoggable(level)) {
+            sLogger.log(format, args);
         }
     }
 
@@ -207,6 +234,10 @@ public class AirbitzCore {
         log(LogLevel.ERROR, debugString);
     }
 
+    public static void loge(String format, Object... args) {
+        log(LogLevel.ERROR, format, args);
+    }
+
     /**
      * Log a message at the warning level.
      * @param debugString to write to logs
@@ -215,6 +246,10 @@ public class AirbitzCore {
         log(LogLevel.WARNING, debugString);
     }
 
+    public static void logw(String format, Object... args) {
+        log(LogLevel.WARNING, format, args);
+    }
+
     /**
      * Log a message at the info level.
      * @param debugString to write to logs
@@ -223,6 +258,10 @@ public class AirbitzCore {
         log(LogLevel.INFO, debugString);
     }
 
+    public static void logi(String format, Object... args) {
+        log(LogLevel.INFO, format, args);
+    }
+
     /**
      * Log a message at the debug level.
      * @param debugString to write to logs
@@ -231,6 +270,17 @@ public class AirbitzCore {
         log(LogLevel.DEBUG, debugString);
     }
 
+    public static void logd(String format, Object... args) {
+        log(LogLevel.DEBUG, format, args);
+    }
+
+    /**
+     * Block until queued log messages have been written to the core log.
+     */
+    public static void flushLogs() {
+        sLogger.flush();
+    }
+
     /**
      * Gets the version of AirbitzCore.
      * @return version number
@@ -257,6 +307,7 @@ public class AirbitzCore {
      * @param text to send to support staff
      */
     public boolean uploadLogs(String username, String password) {
+        flushLogs();
         tABC_Error Error = new tABC_Error();
         core.ABC_UploadLogs(username, password, Error);
         return Error.getCode() == tABC_CC.ABC_CC_Ok;
@@ -319,6 +370,93 @@ public class AirbitzCore {
         return mConnectivity;
     }
 
+    /**
+     * Summary of one histogram in a {@link Metrics} snapshot. Durations are
+     * in microseconds, sizes are in items.
+     */
+    public static class HistogramStats {
+        public long count;
+        public long min;
+        public long max;
+        public double mean;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long p999;
+    }
+
+    /**
+     * A point in time copy of the engine instrumentation. Histograms are
+     * named "task.&lt;lane&gt;.wait" and "task.&lt;lane&gt;.run" for engine
+     * tasks, "core.&lt;call&gt;" for core calls and "size.&lt;name&gt;" for
+     * reload sizes. Counters are named "event.&lt;type&gt;" for async core
+     * events.
+     */
+    public static class Metrics {
+        public long timestamp;
+        public Map<String, HistogramStats> histograms;
+        public Map<String, Long> counters;
+    }
+
+    /**
+     * A timed span emitted to a {@link TraceListener}. Events are grouped
+     * under the "co.airbitz" category and named after the core call or
+     * engine step, such as "ABC_DataSyncWallet" or "event.BalanceUpdate".
+     */
+    public static class TraceEvent {
+        public String category;
+        public String name;
+        /** The wallet the event applies to, or null for account wide events */
+        public String walletId;
+        public long durationMicros;
+        /** Items handled, such as transactions loaded or wallets reloaded */
+        public long count;
+        public String thread;
+        /** Wall clock time in milliseconds when the event ended */
+        public long timestamp;
+    }
+
+    /**
+     * Receives trace events. This is called on the thread that did the work,
+     * often an engine thread, so implementations should only hand the event
+     * off to a recorder.
+     */
+    public interface TraceListener {
+        public void onEvent(TraceEvent event);
+    }
+
+    /**
+     * Register a listener for trace events, or null to stop tracing. Tracing
+     * costs next to nothing while no listener is set.
+     * @param listener the listener to receive events
+     */
+    public void traceListener(TraceListener listener) {
+        Trace.listener(listener);
+    }
+
+    /**
+     * Take a snapshot of the engine instrumentation.
+     * @return the current metrics
+     */
+    public Metrics metrics() {
+        return Instrumentation.instance().snapshot();
+    }
+
+    /**
+     * Enable or disable instrumentation. It is enabled by default.
+     * @param enabled false to stop recording
+     */
+    public void instrumentation(boolean enabled) {
+        Instrumentation.instance().enabled(enabled);
+    }
+
+    /**
+     * Clear all recorded metrics.
+     */
+    public void resetMetrics() {
+        Instrumentation.instance().reset();
+    }
+
     /**
      * Determines if the core library was compiled for testnet or mainnet.
      * @return true if the library is on testnet
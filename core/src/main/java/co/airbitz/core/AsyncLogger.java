@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import co.airbitz.internal.core;
+
+/**
+ * Used internally only. Log records are put on a bounded lock-free ring and
+ * written to the core log by a background thread, so callers never cross
+ * into JNI. Messages are formatted on the writer thread, "{}" in the
+ * message being replaced by the next argument. Each distinct message is
+ * limited to {@link #RATE_LIMIT} records a second. The number suppressed
+ * is logged the next time that message gets through.
+ */
+class AsyncLogger {
+    static final int CAPACITY = 1024;
+    static final int BATCH = 64;
+    static final int RATE_LIMIT = 50;
+    private static final long RATE_WINDOW_MS = 1000;
+    private static final int MAX_WINDOWS = 256;
+    private static final long FLUSH_TIMEOUT_MS = 1000;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private final AtomicLongArray mSequence = new AtomicLongArray(CAPACITY);
+    private final String[] mMessages = new String[CAPACITY];
+    private final Object[][] mArgs = new Object[CAPACITY][];
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile long mHead = 0;
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final AtomicBoolean mSleeping = new AtomicBoolean(false);
+    private final Object mStartLock = new Object();
+    private volatile Thread mWriter;
+
+    private Map<String, Window> mWindows = new ConcurrentHashMap<String, Window>();
+
+    private static class Window {
+        volatile long start;
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger suppressed = new AtomicInteger();
+    }
+
+    AsyncLogger() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mSequence.set(i, i);
+        }
+    }
+
+    void log(String message, Object[] args) {
+        if (!allow(message)) {
+            return;
+        }
+        if (!offer(message, args)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        wake();
+    }
+
+    /**
+     * Waits until everything logged so far has been written, or a short
+     * timeout passes.
+     */
+    void flush() {
+        long target = mTail.get();
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MS);
+        while (mHead < target && System.nanoTime() < deadline) {
+            wake();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    long dropped() {
+        return mDropped.get();
+    }
+
+    private boolean allow(String message) {
+        long now = System.currentTimeMillis();
+        Window window = mWindows.get(message);
+        if (window == null) {
+            if (mWindows.size() >= MAX_WINDOWS) {
+                mWindows.clear();
+            }
+            window = new Window();
+            window.start = now;
+            mWindows.put(message, window);
+        }
+        if (now - window.start >= RATE_WINDOW_MS) {
+            window.start = now;
+            window.count.set(0);
+            int suppressed = window.suppressed.getAndSet(0);
+            if (suppressed > 0) {
+                offer("Suppressed {} messages like: {}",
+                    new Object[] { suppressed, message });
+            }
+        }
+        if (window.count.incrementAndGet() > RATE_LIMIT) {
+            window.suppressed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean offer(String message, Object[] args) {
+        long pos = mTail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & MASK);
+            long diff = mSequence.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                // The writer hasn't caught up, the ring is full
+                return false;
+            } else {
+                pos = mTail.get();
+            }
+        }
+        mMessages[index] = message;
+        mArgs[index] = args;
+        // A full volatile store, so the caller's read of mSleeping in wake()
+        // can't move ahead of it and miss a writer going to sleep
+        mSequence.set(index, pos + 1);
+        return true;
+    }
+
+    private void wake() {
+        Thread writer = mWriter;
+        if (writer == null) {
+            start();
+        } else if (mSleeping.get() && mSleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void start() {
+        synchronized (mStartLock) {
+            if (mWriter != null) {
+                return;
+            }
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, "AirbitzCore log");
+            writer.setDaemon(true);
+            mWriter = writer;
+            writer.start();
+        }
+    }
+
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            batch.setLength(0);
+            int count = 0;
+            long head = mHead;
+            while (count < BATCH) {
+                int index = (int) (head & MASK);
+                if (mSequence.get(index) != head + 1) {
+                    break;
+                }
+                String message = mMessages[index];
+                Object[] args = mArgs[index];
+                mMessages[index] = null;
+                mArgs[index] = null;
+                mSequence.lazySet(index, head + CAPACITY);
+                head++;
+                if (count > 0) {
+                    batch.append('\n');
+                }
+                format(batch, message, args);
+                count++;
+            }
+            long dropped = mDropped.get();
+            if (dropped != reportedDrops) {
+                if (count > 0) {
+                    batch.append('\n');
+                }
+                batch.append("Log ring full, dropped ")
+                    .append(dropped - reportedDrops).append(" messages");
+                reportedDrops = dropped;
+                count++;
+            }
+            if (count > 0) {
+                write(batch.toString());
+                mHead = head;
+                continue;
+            }
+            mSleeping.set(true);
+            // Recheck so a record published before we went to sleep isn't missed
+            if (mSequence.get((int) (head & MASK)) == head + 1) {
+                mSleeping.set(false);
+                continue;
+            }
+            LockSupport.park(this);
+            mSleeping.set(false);
+        }
+    }
+
+    private void write(String text) {
+        try {
+            core.ABC_Log(text);
+        } catch (Throwable e) {
+            // The core is the only log sink; without it there is nowhere
+            // to write
+        }
+    }
+
+    static void format(StringBuilder out, String message, Object[] args) {
+        if (message == null) {
+            out.append("null");
+            return;
+        }
+        if (args == null || args.length == 0) {
+            out.append(message);
+            return;
+        }
+        int from = 0;
+        int arg = 0;
+        while (arg < args.length) {
+            int at = message.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            out.append(message, from, at);
+            out.append(String.valueOf(args[arg++]));
+            from = at + 2;
+        }
+        out.append(message, from, message.length());
+    }
+}
@@ -0,0 +1,402 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Used internally only. A running balance over a wallet's transactions in
+ * date order. mBalances[i] is the balance after the first i + 1
+ * transactions, so the balance at any time is one binary search away. The
+ * same ordering serves time range queries.
+ * When the history reloads, only the transactions after the first
+ * difference from the previous index are summed again, which for new
+ * activity at the head of the history is just the new transactions.
+ */
+class BalanceIndex {
+    private final Transaction[] mTransactions;
+    private final String[] mIds;
+    private final long[] mTimes;
+    private final long[] mAmounts;
+    private final long[] mBalances;
+    private final Map<String, List<Wallet.BalancePoint>> mSeries =
+        new LinkedHashMap<String, List<Wallet.BalancePoint>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Wallet.BalancePoint>> eldest) {
+                return size() > MAX_CACHED_SERIES;
+            }
+        };
+
+    private static final int MAX_CACHED_SERIES = 16;
+    private Map<String, Integer> mPositions;
+
+    private BalanceIndex(int size) {
+        mTransactions = new Transaction[size];
+        mIds = new String[size];
+        mTimes = new long[size];
+        mAmounts = new long[size];
+        mBalances = new long[size];
+    }
+
+    /**
+     * Build the index for a history, reusing the running balance of the
+     * previous index up to the first transaction that differs.
+     * @param previous the last index for this wallet, or null
+     */
+    static BalanceIndex build(BalanceIndex previous, List<Transaction> transactions) {
+        // The core returns the history newest first, so the reversed list
+        // is usually already in order
+        List<Transaction> sorted = new ArrayList<Transaction>(transactions);
+        Collections.reverse(sorted);
+        if (!isSorted(sorted)) {
+            Collections.sort(sorted, TransactionExporter.OLDEST_FIRST);
+        }
+        BalanceIndex index = new BalanceIndex(sorted.size());
+        int same = 0;
+        if (previous != null) {
+            int max = Math.min(previous.size(), sorted.size());
+            while (same < max && previous.matches(same, sorted.get(same))) {
+                same++;
+            }
+            System.arraycopy(previous.mIds, 0, index.mIds, 0, same);
+            System.arraycopy(previous.mTimes, 0, index.mTimes, 0, same);
+            System.arraycopy(previous.mAmounts, 0, index.mAmounts, 0, same);
+            System.arraycopy(previous.mBalances, 0, index.mBalances, 0, same);
+        }
+        // Always take the new objects, which carry the current meta data
+        sorted.toArray(index.mTransactions);
+        long balance = same > 0 ? index.mBalances[same - 1] : 0;
+        for (int i = same; i < sorted.size(); i++) {
+            Transaction tx = sorted.get(i);
+            balance += tx.amount();
+            index.mIds[i] = tx.id();
+            index.mTimes[i] = tx.date().getTime();
+            index.mAmounts[i] = tx.amount();
+            index.mBalances[i] = balance;
+        }
+        // Charts only depend on amounts and dates, so they survive a reload
+        // that changed nothing else
+        if (previous != null && same == previous.size() && same == sorted.size()) {
+            synchronized (previous.mSeries) {
+                index.mSeries.putAll(previous.mSeries);
+            }
+        }
+        return index;
+    }
+
+    static boolean isSorted(List<Transaction> transactions) {
+        for (int i = 1; i < transactions.size(); i++) {
+            if (TransactionExporter.OLDEST_FIRST.compare(
+                    transactions.get(i - 1), transactions.get(i)) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(int i, Transaction tx) {
+        return mTimes[i] == tx.date().getTime()
+            && mAmounts[i] == tx.amount()
+            && mIds[i].equals(tx.id());
+    }
+
+    int size() {
+        return mTimes.length;
+    }
+
+    long time(int i) {
+        return mTimes[i];
+    }
+
+    long balance(int i) {
+        return mBalances[i];
+    }
+
+    /**
+     * @return the number of transactions at or before the time
+     */
+    int count(long time) {
+        int lo = 0;
+        int hi = mTimes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimes[mid] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Walk the transactions in the query's time range newest first, with
+     * binary search for both ends, until the limit is reached.
+     */
+    List<Transaction> query(TransactionQuery query) {
+        int lo = query.mStart != null ? count(query.startMillis() - 1) : 0;
+        int hi = query.mEnd != null ? count(query.endMillis() - 1) : mTimes.length;
+        List<Transaction> results = new ArrayList<Transaction>();
+        for (int i = hi - 1; i >= lo && !query.isFull(results.size()); i--) {
+            if (query.matches(mTransactions[i])) {
+                results.add(mTransactions[i]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * A read-only view of the transactions from start (inclusive) to end
+     * (exclusive), oldest first, without copying them.
+     * @param start milliseconds since the epoch, or 0 for no limit
+     * @param end milliseconds since the epoch, or 0 for no limit
+     */
+    List<Transaction> range(long start, long end) {
+        int lo = start > 0 ? count(start - 1) : 0;
+        int hi = end > 0 ? count(end - 1) : mTimes.length;
+        return Collections.unmodifiableList(
+            Arrays.asList(mTransactions).subList(lo, Math.max(lo, hi)));
+    }
+
+    /**
+     * Read the page a cursor points at. Positions are found by binary
+     * search on (date, txid), the same order the index is sorted in, so a
+     * cursor lands in the same place however many transactions have been
+     * added since it was handed out.
+     */
+    TransactionCursor.Page page(TransactionCursor cursor) {
+        int size = mTimes.length;
+        int lo;
+        int hi;
+        int anchor = anchor(cursor);
+        if (cursor.mDirection == TransactionCursor.Direction.OLDER) {
+            hi = anchor < 0 ? 0 : anchor;
+            lo = Math.max(0, hi - cursor.mPageSize);
+        } else {
+            lo = anchor < 0 ? size : anchor;
+            hi = Math.min(size, lo + cursor.mPageSize);
+        }
+
+        TransactionCursor.Page page = new TransactionCursor.Page();
+        page.transactions = new ArrayList<Transaction>(hi - lo);
+        for (int i = hi - 1; i >= lo; i--) {
+            page.transactions.add(mTransactions[i]);
+        }
+        if (lo > 0) {
+            page.older = lo < hi
+                ? TransactionCursor.after(mTransactions[lo],
+                    TransactionCursor.Direction.OLDER, cursor.mPageSize, false)
+                : TransactionCursor.after(mTransactions[lo - 1],
+                    TransactionCursor.Direction.OLDER, cursor.mPageSize, true);
+        }
+        if (hi < size) {
+            page.newer = lo < hi
+                ? TransactionCursor.after(mTransactions[hi - 1],
+                    TransactionCursor.Direction.NEWER, cursor.mPageSize, false)
+                : TransactionCursor.after(mTransactions[hi],
+                    TransactionCursor.Direction.NEWER, cursor.mPageSize, true);
+        }
+        return page;
+    }
+
+    /*
+     * For OLDER, the end of the page (exclusive). For NEWER, the start of
+     * the page. -1 if the anchor is a txid that is not in the history.
+     */
+    private int anchor(TransactionCursor cursor) {
+        boolean older = cursor.mDirection == TransactionCursor.Direction.OLDER;
+        if (cursor.mId == null) {
+            // Time only anchors include transactions at the time when
+            // reading older and exclude them when reading newer
+            return count(cursor.mTime);
+        }
+        long time = cursor.mTime;
+        if (!cursor.mHasTime) {
+            int i = indexOf(cursor.mId);
+            if (i < 0) {
+                return -1;
+            }
+            time = mTimes[i];
+        }
+        int lo = 0;
+        int hi = mTimes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = mTimes[mid] < time ? -1 : mTimes[mid] > time ? 1
+                : mIds[mid].compareTo(cursor.mId);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        boolean exists = lo < mTimes.length && mIds[lo].equals(cursor.mId);
+        if (!exists) {
+            return lo;
+        }
+        if (older) {
+            return cursor.mInclusive ? lo + 1 : lo;
+        }
+        return cursor.mInclusive ? lo : lo + 1;
+    }
+
+    private synchronized int indexOf(String id) {
+        if (mPositions == null) {
+            mPositions = new HashMap<String, Integer>(mIds.length * 2);
+            for (int i = 0; i < mIds.length; i++) {
+                mPositions.put(mIds[i], i);
+            }
+        }
+        Integer i = mPositions.get(id);
+        return i != null ? i : -1;
+    }
+
+    /**
+     * @param time milliseconds since the epoch
+     * @return the balance including every transaction at or before the time
+     */
+    long balanceAt(long time) {
+        int count = count(time);
+        return count > 0 ? mBalances[count - 1] : 0;
+    }
+
+    /**
+     * @return the net change from transactions after start up to and
+     *      including end
+     */
+    long change(long start, long end) {
+        return balanceAt(end) - balanceAt(start);
+    }
+
+    /**
+     * Returns the balance over a time range as at most maxPoints points,
+     * downsampled with largest-triangle-three-buckets so that peaks and
+     * dips survive. The first and last points are the balance at the start
+     * and end of the range. Results are cached per range and size.
+     */
+    List<Wallet.BalancePoint> series(long start, long end, int maxPoints) {
+        String key = start + ":" + end + ":" + maxPoints;
+        synchronized (mSeries) {
+            List<Wallet.BalancePoint> cached = mSeries.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        int first = count(start);
+        int last = count(end);
+        int size = Math.max(0, last - first) + 2;
+        long[] times = new long[size];
+        long[] balances = new long[size];
+        times[0] = start;
+        balances[0] = balanceAt(start);
+        for (int i = first; i < last; i++) {
+            times[i - first + 1] = mTimes[i];
+            balances[i - first + 1] = mBalances[i];
+        }
+        times[size - 1] = end;
+        balances[size - 1] = balanceAt(end);
+
+        int[] picked = lttb(times, balances, maxPoints);
+        List<Wallet.BalancePoint> series = new ArrayList<Wallet.BalancePoint>(picked.length);
+        for (int i : picked) {
+            series.add(new Wallet.BalancePoint(new Date(times[i]), balances[i]));
+        }
+        series = Collections.unmodifiableList(series);
+        synchronized (mSeries) {
+            mSeries.put(key, series);
+        }
+        return series;
+    }
+
+    /*
+     * Largest-triangle-three-buckets. Keeps the first and last points and
+     * from each bucket in between picks the point that forms the largest
+     * triangle with the previous pick and the average of the next bucket.
+     */
+    static int[] lttb(long[] xs, long[] ys, int threshold) {
+        int length = xs.length;
+        if (threshold >= length || threshold <= 0) {
+            int[] all = new int[length];
+            for (int i = 0; i < length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        if (threshold == 1) {
+            return new int[] { length - 1 };
+        }
+        if (threshold == 2) {
+            return new int[] { 0, length - 1 };
+        }
+        int[] picked = new int[threshold];
+        int count = 0;
+        picked[count++] = 0;
+        double every = (double) (length - 2) / (threshold - 2);
+        int a = 0;
+        for (int i = 0; i < threshold - 2; i++) {
+            int nextStart = (int) Math.floor((i + 1) * every) + 1;
+            int nextEnd = Math.min((int) Math.floor((i + 2) * every) + 1, length);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                avgX += xs[j];
+                avgY += ys[j];
+            }
+            int nextCount = nextEnd - nextStart;
+            avgX /= nextCount;
+            avgY /= nextCount;
+
+            int rangeStart = (int) Math.floor(i * every) + 1;
+            int rangeEnd = (int) Math.floor((i + 1) * every) + 1;
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((xs[a] - avgX) * (ys[j] - (double) ys[a])
+                    - (xs[a] - (double) xs[j]) * (avgY - ys[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            picked[count++] = next;
+            a = next;
+        }
+        picked[count++] = length - 1;
+        return picked;
+    }
+}
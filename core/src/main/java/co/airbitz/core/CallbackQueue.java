@@ -0,0 +1,372 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Used internally only. Delivers {@link Account.Callbacks} on a consumer
+ * supplied executor through a bounded queue, so a slow consumer never blocks
+ * the engine. State notifications such as walletChanged for the same wallet
+ * replace the pending one instead of queueing again.
+ */
+class CallbackQueue implements Account.Callbacks {
+    static final int DEFAULT_CAPACITY = 256;
+    private static final int DRAIN_BATCH = 32;
+
+    /*
+     * A callback waiting in the queue. The target is read when it is
+     * delivered, so a consumer that was replaced or removed in the meantime
+     * never sees it.
+     */
+    private interface Delivery {
+        void run(Account.Callbacks target);
+    }
+
+    private static class Entry {
+        final boolean evictable;
+        final Delivery delivery;
+
+        Entry(boolean evictable, Delivery delivery) {
+            this.evictable = evictable;
+            this.delivery = delivery;
+        }
+    }
+
+    private final int mCapacity;
+    private final Map<Object, Entry> mQueue = new LinkedHashMap<Object, Entry>();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile Account.Callbacks mTarget;
+    private Executor mExecutor;
+    private ExecutorService mOwnedExecutor;
+    private boolean mDraining = false;
+    private long mSequence = 0;
+
+    CallbackQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    CallbackQueue(int capacity) {
+        mCapacity = capacity;
+    }
+
+    synchronized void target(Account.Callbacks target, Executor executor) {
+        mTarget = target;
+        if (target == null) {
+            mQueue.clear();
+        }
+        if (executor != null) {
+            if (mOwnedExecutor != null) {
+                mOwnedExecutor.shutdown();
+                mOwnedExecutor = null;
+            }
+            mExecutor = executor;
+        } else {
+            if (mOwnedExecutor == null || mOwnedExecutor.isShutdown()) {
+                mOwnedExecutor = Executors.newSingleThreadExecutor();
+            }
+            mExecutor = mOwnedExecutor;
+        }
+    }
+
+    synchronized void shutdown() {
+        mDropped.addAndGet(mQueue.size());
+        mQueue.clear();
+        if (mOwnedExecutor != null) {
+            mOwnedExecutor.shutdown();
+            mOwnedExecutor = null;
+        }
+        mExecutor = null;
+    }
+
+    long delivered() {
+        return mDelivered.get();
+    }
+
+    long coalesced() {
+        return mCoalesced.get();
+    }
+
+    long dropped() {
+        return mDropped.get();
+    }
+
+    synchronized int queued() {
+        return mQueue.size();
+    }
+
+    private static String key(String name, Wallet wallet) {
+        return name + ":" + (wallet != null ? wallet.id() : null);
+    }
+
+    /*
+     * Refresh notifications only tell the consumer to re-read state, so a
+     * later one makes up for any that are evicted.
+     */
+    private void postRefresh(String key, Delivery delivery) {
+        post(key, true, delivery);
+    }
+
+    private void post(String key, Delivery delivery) {
+        post(key, false, delivery);
+    }
+
+    private void post(String key, boolean evictable, Delivery delivery) {
+        synchronized (this) {
+            if (mExecutor == null) {
+                mDropped.incrementAndGet();
+                return;
+            }
+            boolean coalescible = key != null;
+            if (coalescible && mQueue.containsKey(key)) {
+                // The pending callback keeps its place but carries the newest data
+                mQueue.put(key, new Entry(evictable, delivery));
+                mCoalesced.incrementAndGet();
+                return;
+            }
+            if (mQueue.size() >= mCapacity && !evictOldest()) {
+                mDropped.incrementAndGet();
+                return;
+            }
+            mQueue.put(coalescible ? key : Long.valueOf(mSequence++),
+                    new Entry(evictable, delivery));
+            if (mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        schedule();
+    }
+
+    /*
+     * Make room by dropping the oldest refresh notification. One-off events
+     * such as incoming bitcoin, OTP prompts or a remote password change are
+     * never evicted.
+     */
+    private boolean evictOldest() {
+        Iterator<Entry> it = mQueue.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().evictable) {
+                it.remove();
+                mDropped.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void schedule() {
+        Executor executor;
+        synchronized (this) {
+            executor = mExecutor;
+        }
+        try {
+            if (executor == null) {
+                throw new RejectedExecutionException();
+            }
+            executor.execute(mDrain);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mDropped.addAndGet(mQueue.size());
+                mQueue.clear();
+                mDraining = false;
+            }
+        }
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        public void run() {
+            boolean empty = false;
+            try {
+                for (int i = 0; i < DRAIN_BATCH; i++) {
+                    Entry entry;
+                    Account.Callbacks target;
+                    synchronized (CallbackQueue.this) {
+                        Iterator<Entry> it = mQueue.values().iterator();
+                        if (!it.hasNext()) {
+                            mDraining = false;
+                            empty = true;
+                            return;
+                        }
+                        entry = it.next();
+                        it.remove();
+                        target = mTarget;
+                    }
+                    if (target == null) {
+                        mDropped.incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        entry.delivery.run(target);
+                        mDelivered.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        AirbitzCore.loge("Callback failed: " + e.getMessage());
+                    }
+                }
+            } finally {
+                // Give other tasks on the consumer's executor a turn. This
+                // also keeps the queue moving if a callback threw an Error.
+                if (!empty) {
+                    schedule();
+                }
+            }
+        }
+    };
+
+    public void remotePasswordChange() {
+        post("remotePasswordChange", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.remotePasswordChange();
+            }
+        });
+    }
+
+    public void loggedOut() {
+        post(null, new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.loggedOut();
+            }
+        });
+    }
+
+    public void accountChanged() {
+        postRefresh("accountChanged", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.accountChanged();
+            }
+        });
+    }
+
+    public void walletsLoading() {
+        post("walletsLoading", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.walletsLoading();
+            }
+        });
+    }
+
+    public void walletsLoaded() {
+        post("walletsLoaded", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.walletsLoaded();
+            }
+        });
+    }
+
+    public void walletsChanged() {
+        postRefresh("walletsChanged", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.walletsChanged();
+            }
+        });
+    }
+
+    public void walletChanged(final Wallet wallet) {
+        postRefresh(key("walletChanged", wallet), new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.walletChanged(wallet);
+            }
+        });
+    }
+
+    public void otpSkew() {
+        post("otpSkew", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.otpSkew();
+            }
+        });
+    }
+
+    public void otpRequired() {
+        post("otpRequired", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.otpRequired();
+            }
+        });
+    }
+
+    public void loginMessages(final String messages) {
+        post("loginMessages", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.loginMessages(messages);
+            }
+        });
+    }
+
+    public void exchangeRateChanged() {
+        postRefresh("exchangeRateChanged", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.exchangeRateChanged();
+            }
+        });
+    }
+
+    public void blockHeightChanged() {
+        postRefresh("blockHeightChanged", new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.blockHeightChanged();
+            }
+        });
+    }
+
+    public void balanceUpdate(final Wallet wallet, final Transaction tx) {
+        postRefresh(key("balanceUpdate", wallet), new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.balanceUpdate(wallet, tx);
+            }
+        });
+    }
+
+    public void incomingBitcoin(final Wallet wallet, final Transaction tx) {
+        post(null, new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.incomingBitcoin(wallet, tx);
+            }
+        });
+    }
+
+    public void sweep(final Wallet wallet, final Transaction tx, final long amountSwept) {
+        post(null, new Delivery() {
+            public void run(Account.Callbacks target) {
+                target.sweep(wallet, tx, amountSwept);
+            }
+        });
+    }
+}
@@ -98,7 +98,7 @@ public class Categories {
         List<String> categories = list();
         if (categories != null && !categories.contains(category)) {
             // add the category to the core
-            AirbitzCore.logi("Adding category: " + category);
+            AirbitzCore.logi("Adding category: {}", category);
             tABC_Error Error = new tABC_Error();
             core.ABC_AddCategory(
                     mAccount.username(), mAccount.password(),
@@ -121,7 +121,7 @@ public class Categories {
      * @param category the category to remote
      */
     public boolean remove(String category) {
-        AirbitzCore.logi("Remove category: " + category);
+        AirbitzCore.logi("Remove category: {}", category);
         tABC_Error Error = new tABC_Error();
         tABC_CC result = core.ABC_RemoveCategory(
                 mAccount.username(), mAccount.password(),
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Used internally only. Encodes text as UTF-8 into a fixed size buffer and
+ * writes it to a channel each time the buffer fills, so an export never
+ * holds more than one chunk in memory.
+ */
+class ChunkedWriter extends Writer {
+    private final WritableByteChannel mChannel;
+    private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder();
+    private final ByteBuffer mBuffer;
+    private long mBytes = 0;
+
+    ChunkedWriter(WritableByteChannel channel, int chunkSize) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(Math.max(chunkSize, 16));
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        encode(CharBuffer.wrap(chars, offset, length), false);
+    }
+
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        encode(CharBuffer.wrap(text, offset, offset + length), false);
+    }
+
+    private void encode(CharBuffer chars, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = mEncoder.encode(chars, mBuffer, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mBytes += mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * @return the number of bytes written to the channel so far
+     */
+    long bytesWritten() {
+        return mBytes;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Writes out whatever is buffered. The channel itself is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        encode(CharBuffer.allocate(0), true);
+        while (mEncoder.flush(mBuffer).isOverflow()) {
+            drain();
+        }
+        drain();
+    }
+}
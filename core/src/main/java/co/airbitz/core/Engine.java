@@ -37,18 +37,16 @@ import java.text.NumberFormat;
 import java.text.ParsePosition;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import co.airbitz.internal.Jni;
@@ -73,6 +71,18 @@ class Engine {
     private static int ABC_EXCHANGE_RATE_REFRESH_INTERVAL_SECONDS = 60;
     private static int ABC_SYNC_REFRESH_INTERVAL_SECONDS = 30;
     private static final int TX_LOADED_DELAY = 1000 * 20;
+    private static final int DATA_SYNC_COALESCE_MS = 250;
+    private static final int SHUTDOWN_DEADLINE_MS = 5000;
+    private static final int LATE_WATCHER_POLL_MS = 100;
+    // Periodic refreshes are aligned to this so they share wakeups
+    private static final int REFRESH_SLACK_MS = 5000;
+    private static final int AUTOLOGOUT_RETRY_MS = 60 * 1000;
+
+    private static final String DIRTY_TIMER = "dirty";
+    private static final String SYNC_TIMER = "sync";
+    private static final String EXCHANGE_TIMER = "exchange";
+    private static final String LOADED_TIMER = "loaded";
+    private static final String AUTOLOGOUT_TIMER = "autologout";
 
     public native boolean registerAsyncCallback();
 
@@ -82,20 +92,27 @@ class Engine {
     private ScheduledExecutorService mMainHandler;
     private ScheduledExecutorService mReloadExecutor;
     private ScheduledExecutorService mCoreHandler;
-    private ScheduledExecutorService mWatcherExecutor;
+    private InstrumentedExecutor mWatcherExecutor;
     private ScheduledExecutorService mDataExecutor;
     private ScheduledExecutorService mExchangeExecutor;
-    private ScheduledFuture mDataFuture;
-    private ScheduledFuture mLoadedFuture;
-    private ScheduledFuture mExchangeFuture;
-    private ScheduledFuture mMainDataFuture;
-    private Map<String, ScheduledFuture> mBalanceUpdateFuture = new ConcurrentHashMap<String, ScheduledFuture>();
+    private ScheduledExecutorService mHistoryExecutor;
     private boolean mDataFetched = false;
-    private Timer mAutologoutTimer;
+    private final Object mDirtyLock = new Object();
+    private boolean mAccountDirty = false;
+    private Set<String> mDirtyWallets = new HashSet<String>();
+    private Set<String> mOfflineDirty = new HashSet<String>();
+    private TimerWheel mTimers = new TimerWheel("Engine timers");
+    private EventDispatcher mEventDispatcher;
+    private volatile boolean mOffline = false;
 
     Engine(AirbitzCore api, Account account) {
         mApi = api;
         mAccount = account;
+        mEventDispatcher = new EventDispatcher(new EventDispatcher.Listener() {
+            public void onEvents(List<EventDispatcher.Event> events) {
+                dispatchEvents(events);
+            }
+        });
 
         if (registerAsyncCallback()) {
             AirbitzCore.logi("Registered for core callbacks");
@@ -103,7 +120,9 @@ class Engine {
     }
 
     private Map<String, Thread> mWatcherTasks = new ConcurrentHashMap<String, Thread>();
-    private Map<String, Boolean> mWalletSynced = new ConcurrentHashMap<String, Boolean>();
+    // Watchers from an earlier engine still winding down, by wallet
+    private static Map<String, Thread> sLateWatchers = new ConcurrentHashMap<String, Thread>();
+    private SyncTracker mSyncTracker = new SyncTracker();
 
     public void startWatchers() {
         List<String> wallets = mAccount.walletIds();
@@ -127,10 +146,15 @@ class Engine {
         sendIfNotEmptying(mWatcherExecutor, new Runnable() {
             public void run() {
                 if (uuid != null && !mWatcherTasks.containsKey(uuid)) {
+                    if (!awaitLateWatcher(uuid)) {
+                        return;
+                    }
                     tABC_Error error = new tABC_Error();
+                    long start = Instrumentation.start();
                     core.ABC_WatcherStart(mAccount.username(), mAccount.password(), uuid, error);
+                    Instrumentation.call("core.ABC_WatcherStart", start);
                     Utils.printABCError(error);
-                    AirbitzCore.logi("Started watcher for " + uuid);
+                    AirbitzCore.logi("Started watcher for {}", uuid);
 
                     Thread thread = new Thread(new WatcherRunnable(uuid));
                     thread.start();
@@ -139,6 +163,7 @@ class Engine {
                         connectWatcher(uuid);
                     }
                     mWatcherTasks.put(uuid, thread);
+                    mSyncTracker.watching(uuid);
 
                     // Request a data sync as soon as watcher is started
                     requestWalletDataSync(uuid);
@@ -156,15 +181,18 @@ class Engine {
     }
 
     public void connectWatcher(final String uuid) {
+        if (mOffline) {
+            return;
+        }
         sendIfNotEmptying(mWatcherExecutor, new Runnable() {
             public void run() {
                 if (uuid != null && mWatcherTasks.containsKey(uuid) && mAccount.isLoggedIn()) {
-                    AirbitzCore.logi("Watcher connecting  " + uuid + ".");
+                    AirbitzCore.logi("Watcher connecting  {}.", uuid);
                     tABC_Error error = new tABC_Error();
                     core.ABC_WatcherConnect(uuid, error);
                     Utils.printABCError(error);
                 } else {
-                    AirbitzCore.logi("Watcher not connecting  " + uuid + ". Watcher not running.");
+                    AirbitzCore.logi("Watcher not connecting  {}. Watcher not running.", uuid);
                 }
             }
         });
@@ -182,13 +210,14 @@ class Engine {
     }
 
     public void waitOnWatchers() {
+        if (mWatcherExecutor == null) {
+            return;
+        }
         mWatcherExecutor.shutdown();
-        while (mWatcherExecutor != null && !mWatcherExecutor.isTerminated()) {
-            try {
-                Thread.sleep(1000);
-            } catch (Exception e) {
-                AirbitzCore.loge(e.getMessage());
-            }
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_DEADLINE_MS);
+        if (!awaitTermination(mWatcherExecutor, deadline)) {
+            AirbitzCore.logw("Watcher executor missed shutdown deadline");
         }
     }
 
@@ -212,26 +241,105 @@ class Engine {
     public void stopWatchers() {
         sendIfNotEmptying(mWatcherExecutor, new Runnable() {
             public void run() {
-                tABC_Error error = new tABC_Error();
-                List<String> uuids = new ArrayList<String>(mWatcherTasks.keySet());
-                for (String uuid : uuids) {
-                    core.ABC_WatcherStop(uuid, error);
+                long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_DEADLINE_MS);
+                List<String> missed = stopWatchers(deadline);
+                if (!missed.isEmpty()) {
+                    AirbitzCore.logw("Watchers missed shutdown deadline: {}", missed);
                 }
-                // Wait for all of the threads to finish.
-                for (String uuid : uuids) {
-                    Thread t = mWatcherTasks.get(uuid);
-                    try {
-                        t.join();
-                    } catch (InterruptedException e) {
-                        AirbitzCore.loge(e.getMessage());
-                    }
-                    mWatcherTasks.remove(uuid);
+            }
+        });
+    }
+
+    /*
+     * Signal every watcher to stop before waiting on any of them, so they
+     * all wind down in parallel. Returns the watchers still running when the
+     * deadline passed.
+     */
+    private List<String> stopWatchers(long deadline) {
+        tABC_Error error = new tABC_Error();
+        List<String> uuids = new ArrayList<String>(mWatcherTasks.keySet());
+        for (String uuid : uuids) {
+            core.ABC_WatcherStop(uuid, error);
+        }
+        List<String> missed = new ArrayList<String>();
+        for (String uuid : uuids) {
+            Thread t = mWatcherTasks.get(uuid);
+            long remaining = deadline - System.nanoTime();
+            try {
+                if (t != null && remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedJoin(t, remaining);
                 }
-                for (String uuid : uuids) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWatcherTasks.remove(uuid);
+            if (t != null && t.isAlive()) {
+                missed.add("Watcher " + uuid);
+                deleteWatcherWhenDone(uuid, t);
+                continue;
+            }
+            core.ABC_WatcherDelete(uuid, error);
+        }
+        return missed;
+    }
+
+    /*
+     * A watcher that missed the shutdown deadline is still deleted once its
+     * loop returns, so the next login doesn't inherit it.
+     */
+    private void deleteWatcherWhenDone(final String uuid, final Thread watcher) {
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    watcher.join();
+                    tABC_Error error = new tABC_Error();
                     core.ABC_WatcherDelete(uuid, error);
+                    AirbitzCore.logi("Deleted late watcher {}", uuid);
+                } catch (InterruptedException e) {
+                    // Leave it for the process to clean up
+                } finally {
+                    sLateWatchers.remove(uuid, Thread.currentThread());
                 }
             }
-        });
+        }, "Watcher reaper");
+        reaper.setDaemon(true);
+        sLateWatchers.put(uuid, reaper);
+        reaper.start();
+    }
+
+    /*
+     * The core keys watchers by wallet, so a new watcher must not start
+     * until a late one for the same wallet has been deleted. The wait is
+     * bounded by SHUTDOWN_DEADLINE_MS and gives up as soon as the engine
+     * starts stopping, so a watcher is never registered after stop() has
+     * returned. Returns false if the watcher should not be started; the
+     * next startWatchers() tries again.
+     */
+    private boolean awaitLateWatcher(String uuid) {
+        Thread reaper = sLateWatchers.get(uuid);
+        if (reaper != null) {
+            AirbitzCore.logi("Waiting on late watcher {}", uuid);
+            long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_DEADLINE_MS);
+            try {
+                while (reaper.isAlive() && !mWatcherExecutor.isShutdown()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedJoin(reaper,
+                        Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(LATE_WATCHER_POLL_MS)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (reaper.isAlive()) {
+                AirbitzCore.logw("Late watcher {} still running, not starting", uuid);
+                return false;
+            }
+        }
+        return !mWatcherExecutor.isShutdown();
     }
 
     public void stopWatcher(String uuid) {
@@ -239,6 +347,10 @@ class Engine {
         core.ABC_WatcherStop(uuid, error);
         core.ABC_WatcherDelete(uuid, error);
         mWatcherTasks.remove(uuid);
+        mAccount.removeHistory(uuid);
+        if (mSyncTracker.remove(uuid)) {
+            notifyWalletsLoaded();
+        }
     }
 
     public void deleteWatcherCache() {
@@ -257,22 +369,97 @@ class Engine {
         });
     }
 
-    private Future mReloadFuture = null;
+    private final Object mReloadLock = new Object();
+    private boolean mReloading = false;
+    private boolean mReloadAgain = false;
+
+    /*
+     * Only one reload runs at a time. A request that arrives while one is
+     * running may have missed it, so it is folded into a single extra pass
+     * once the current one finishes.
+     */
     public void reloadWallets() {
-        if (mReloadExecutor != null
-                && (mReloadFuture == null || mReloadFuture.isDone())
-                && mAccount.isLoggedIn()) {
-            mReloadFuture = mReloadExecutor.submit(new Runnable() {
-                public void run() {
+        synchronized (mReloadLock) {
+            if (mReloadExecutor == null
+                    || mReloadExecutor.isShutdown()
+                    || !mAccount.isLoggedIn()) {
+                return;
+            }
+            if (mReloading) {
+                mReloadAgain = true;
+                return;
+            }
+            mReloading = true;
+            try {
+                mReloadExecutor.submit(mReloadWallets);
+            } catch (RejectedExecutionException e) {
+                mReloading = false;
+            }
+        }
+    }
+
+    private final Runnable mReloadWallets = new Runnable() {
+        public void run() {
+            boolean finished = false;
+            try {
+                do {
+                    long trace = Trace.begin();
                     List<Wallet> wallets = new ArrayList<Wallet>();
                     List<String> uuids = mAccount.walletIds();
                     for (String uuid : uuids) {
                         wallets.add(getWalletFromCore(uuid));
                     }
+                    Instrumentation.size("size.reloadWallets", wallets.size());
+                    Trace.end("reloadWallets", null, trace, wallets.size());
                     postWalletsToMain(wallets);
+                } while (reloadAgain());
+                finished = true;
+            } finally {
+                if (!finished) {
+                    synchronized (mReloadLock) {
+                        mReloading = false;
+                        mReloadAgain = false;
+                    }
                 }
-            });
+            }
+        }
+    };
+
+    private boolean reloadAgain() {
+        synchronized (mReloadLock) {
+            if (mReloadAgain && mAccount.isLoggedIn()
+                    && !Thread.currentThread().isInterrupted()) {
+                mReloadAgain = false;
+                return true;
+            }
+            mReloadAgain = false;
+            mReloading = false;
+            return false;
+        }
+    }
+
+    void reloadWallet(final String uuid) {
+        if (mReloadExecutor == null
+                || mReloadExecutor.isShutdown()
+                || !mAccount.isLoggedIn()) {
+            return;
         }
+        mReloadExecutor.submit(new Runnable() {
+            public void run() {
+                long trace = Trace.begin();
+                final Wallet wallet = getWalletFromCore(uuid);
+                Trace.end("reloadWallet", uuid, trace, 1);
+                sendIfNotEmptying(mMainHandler, new Runnable() {
+                    public void run() {
+                        if (mAccount.updateWallet(wallet)
+                                && mAccount.mCallbacks != null) {
+                            mAccount.mCallbacks.walletChanged(wallet);
+                        }
+                        loadFocusedHistory();
+                    }
+                });
+            }
+        });
     }
 
     private void postWalletsToMain(final List<Wallet> wallets) {
@@ -282,36 +469,137 @@ class Engine {
                 if (mAccount.mCallbacks != null) {
                     mAccount.mCallbacks.walletsChanged();
                 }
+                loadFocusedHistory();
             }
         });
     }
 
-    private void receiveDataSyncUpdate() {
-        if (mMainDataFuture != null) {
-            mMainDataFuture.cancel(false);
+    /*
+     * Reloads only refresh wallet summaries. The history of the wallet the
+     * app is showing is loaded here, on its own lane, whenever it is stale.
+     */
+    void loadFocusedHistory() {
+        final String uuid = mAccount.focusedWalletId();
+        if (uuid == null || mAccount.history(uuid).isLoaded()) {
+            return;
         }
-        mMainDataFuture = mMainHandler.schedule(new Runnable() {
+        sendIfNotEmptying(mHistoryExecutor, new Runnable() {
             public void run() {
-                mAccount.mSettings = null;
-                startWatchers();
-                reloadWallets();
-                if (mAccount.mCallbacks != null) {
-                    mAccount.mCallbacks.accountChanged();
+                final Wallet wallet = mAccount.wallet(uuid);
+                WalletHistory history = mAccount.history(uuid);
+                if (wallet == null || history.isLoaded()) {
+                    return;
                 }
+                history.get(wallet);
+                sendIfNotEmptying(mMainHandler, new Runnable() {
+                    public void run() {
+                        if (mAccount.mCallbacks != null) {
+                            mAccount.mCallbacks.walletChanged(mAccount.wallet(uuid));
+                        }
+                    }
+                });
             }
-        }, ABC_EXCHANGE_RATE_REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        });
+    }
+
+    /*
+     * Remote changes are applied after a short window so that a burst of
+     * dirty syncs (the account and several wallets) results in one reload.
+     */
+    private void receiveAccountDataSyncUpdate() {
+        synchronized (mDirtyLock) {
+            mAccountDirty = true;
+        }
+        scheduleDataSyncUpdate();
+    }
+
+    private void receiveWalletDataSyncUpdate(String uuid) {
+        mAccount.history(uuid).invalidate();
+        synchronized (mDirtyLock) {
+            mDirtyWallets.add(uuid);
+        }
+        scheduleDataSyncUpdate();
+    }
+
+    private void scheduleDataSyncUpdate() {
+        synchronized (mDirtyLock) {
+            if (mTimers.isPending(DIRTY_TIMER)) {
+                return;
+            }
+            mTimers.schedule(DIRTY_TIMER, DATA_SYNC_COALESCE_MS, new Runnable() {
+                public void run() {
+                    sendIfNotEmptying(mMainHandler, new Runnable() {
+                        public void run() {
+                            applyDataSyncUpdate();
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private void applyDataSyncUpdate() {
+        boolean accountDirty;
+        List<String> dirtyWallets;
+        synchronized (mDirtyLock) {
+            accountDirty = mAccountDirty;
+            dirtyWallets = new ArrayList<String>(mDirtyWallets);
+            mAccountDirty = false;
+            mDirtyWallets.clear();
+            if (mOffline) {
+                mOfflineDirty.addAll(dirtyWallets);
+            }
+        }
+        if (!mAccount.isLoggedIn()) {
+            return;
+        }
+        if (accountDirty) {
+            // Settings or the wallet list may have changed, so reload it all
+            Settings old = mAccount.mSettings;
+            Map<String, Object> before = old != null ? old.snapshot() : null;
+            mAccount.invalidateSettings();
+            mAccount.invalidateWalletIds();
+            Settings settings = mAccount.settings();
+            if (before != null && settings != null) {
+                Map<String, Settings.Change> changes =
+                    Settings.diff(before, settings.snapshot());
+                if (!changes.isEmpty()) {
+                    mAccount.settingsChanged(settings, changes);
+                }
+            }
+            startWatchers();
+            reloadWallets();
+            if (mAccount.mCallbacks != null) {
+                mAccount.mCallbacks.accountChanged();
+            }
+        } else {
+            for (String uuid : dirtyWallets) {
+                reloadWallet(uuid);
+            }
+        }
     }
 
     public void start() {
-        mMainHandler = Executors.newScheduledThreadPool(1);
-        mReloadExecutor = Executors.newScheduledThreadPool(1);
-        mDataExecutor = Executors.newScheduledThreadPool(1);
-        mExchangeExecutor = Executors.newScheduledThreadPool(1);
-        mCoreHandler = Executors.newScheduledThreadPool(1);
-        mWatcherExecutor = Executors.newScheduledThreadPool(1);
+        synchronized (mReloadLock) {
+            mReloading = false;
+            mReloadAgain = false;
+        }
+        mMainHandler = new InstrumentedExecutor("main");
+        mReloadExecutor = new InstrumentedExecutor("reload");
+        mDataExecutor = new InstrumentedExecutor("data");
+        mExchangeExecutor = new InstrumentedExecutor("exchange");
+        mCoreHandler = new InstrumentedExecutor("core");
+        mWatcherExecutor = new InstrumentedExecutor("watcher");
+        mHistoryExecutor = new InstrumentedExecutor("history");
+        mEventDispatcher.start(mTimers, mMainHandler);
+        mOffline = !mApi.hasConnectivity();
 
         final List<String> uuids = mAccount.walletIds();
         final int walletCount = uuids.size();
+        mSyncTracker.reset();
+        for (String uuid : uuids) {
+            mSyncTracker.track(uuid);
+        }
         if (mAccount.mCallbacks != null) {
             mMainHandler.submit(new Runnable() {
                 public void run() {
@@ -323,7 +611,11 @@ class Engine {
             mCoreHandler.submit(new Runnable() {
                 public void run() {
                     tABC_Error error = new tABC_Error();
+                    long start = Instrumentation.start();
+                    long trace = Trace.begin();
                     core.ABC_WalletLoad(mAccount.username(), uuid, error);
+                    Instrumentation.call("core.ABC_WalletLoad", start);
+                    Trace.end("ABC_WalletLoad", uuid, trace, 1);
 
                     startWatcher(uuid);
                     mMainHandler.submit(new Runnable() {
@@ -348,47 +640,76 @@ class Engine {
         });
     }
 
-    public void stop() {
+    /**
+     * Stops the engine, waiting at most SHUTDOWN_DEADLINE_MS for the
+     * executors and watchers to finish.
+     * @return the components that did not stop before the deadline
+     */
+    public List<String> stop() {
+        List<String> missed = new ArrayList<String>();
         if (mCoreHandler == null
                 || mDataExecutor == null
                 || mExchangeExecutor == null
                 || mWatcherExecutor == null
                 || mMainHandler == null) {
-            return;
+            return missed;
         }
-        stopWatchers();
-        stopExchangeRateUpdates();
-        stopFileSyncUpdates();
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_DEADLINE_MS);
+        mEventDispatcher.stop();
+        mTimers.shutdown();
 
         mCoreHandler.shutdownNow();
         mDataExecutor.shutdownNow();
         mExchangeExecutor.shutdownNow();
         mReloadExecutor.shutdownNow();
+        mHistoryExecutor.shutdownNow();
         mMainHandler.shutdownNow();
+        // Drop queued watcher starts, but let a running one finish so that
+        // its watcher is registered before we stop them all
+        mWatcherExecutor.getQueue().clear();
         mWatcherExecutor.shutdown();
-        while (!mCoreHandler.isTerminated()
-                || !mExchangeExecutor.isTerminated()
-                || !mWatcherExecutor.isTerminated()
-                || !mReloadExecutor.isTerminated()
-                || !mMainHandler.isTerminated()) {
-            try {
-                AirbitzCore.logi(
-                    "Data: " + mDataExecutor.isTerminated() + ", " +
-                    "Core: " + mCoreHandler.isTerminated() + ", " +
-                    "Reload: " + mReloadExecutor.isTerminated() + ", " +
-                    "Main: " + mMainHandler.isTerminated() + ", " +
-                    "Watcher: " + mWatcherExecutor.isTerminated() + ", " +
-                    "Exchange: " + mExchangeExecutor.isTerminated() + "");
-                Thread.sleep(200);
-            } catch (Exception e) {
-                AirbitzCore.loge(e.getMessage());
-            }
+        if (!awaitTermination(mWatcherExecutor, deadline)) {
+            missed.add("Watcher");
+        }
+        missed.addAll(stopWatchers(deadline));
+
+        if (!awaitTermination(mCoreHandler, deadline)) {
+            missed.add("Core");
+        }
+        if (!awaitTermination(mDataExecutor, deadline)) {
+            missed.add("Data");
+        }
+        if (!awaitTermination(mExchangeExecutor, deadline)) {
+            missed.add("Exchange");
+        }
+        if (!awaitTermination(mReloadExecutor, deadline)) {
+            missed.add("Reload");
+        }
+        if (!awaitTermination(mHistoryExecutor, deadline)) {
+            missed.add("History");
+        }
+        if (!awaitTermination(mMainHandler, deadline)) {
+            missed.add("Main");
+        }
+        if (!missed.isEmpty()) {
+            AirbitzCore.logw("Engine stop missed deadline: {}", missed);
+        }
+        return missed;
+    }
+
+    private static boolean awaitTermination(ExecutorService executor, long deadline) {
+        long remaining = deadline - System.nanoTime();
+        try {
+            return executor.awaitTermination(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return executor.isTerminated();
         }
     }
 
     void resume() {
-        if (mAutologoutTimer != null)
-            mAutologoutTimer.cancel();
+        mTimers.cancel(AUTOLOGOUT_TIMER);
 
         if (mAccount.isExpired()) {
             mAccount.logout();
@@ -396,30 +717,105 @@ class Engine {
     }
 
     void pause() {
-        mAutologoutTimer = new Timer();
-        mAutologoutTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
+        scheduleAutoLogout();
+    }
+
+    /*
+     * Sleep until the account is due to expire rather than polling.
+     */
+    private void scheduleAutoLogout() {
+        long delay = AUTOLOGOUT_RETRY_MS;
+        Settings settings = mAccount.settings();
+        if (settings != null && mAccount.mLastBackgroundTime != 0) {
+            long elapsed = System.currentTimeMillis() - mAccount.mLastBackgroundTime;
+            delay = Math.max(settings.secondsAutoLogout() * 1000L - elapsed, 0) + 1;
+        }
+        mTimers.schedule(AUTOLOGOUT_TIMER, delay, new Runnable() {
             public void run() {
-                if (mAccount.isExpired() && mAccount.isLoggedIn()) {
-                    mAutologoutTimer.cancel();
+                if (!mAccount.isLoggedIn()) {
+                    return;
+                }
+                if (mAccount.isExpired()) {
                     mAccount.logout();
+                } else {
+                    scheduleAutoLogout();
                 }
             }
-        }, 1000, 1000);
+        });
     }
 
     void restoreConnectivity() {
         resume();
+        if (!mOffline) {
+            return;
+        }
+        mOffline = false;
+        if (mAccount.isLoggedIn()) {
+            sendIfNotEmptying(mMainHandler, new Runnable() {
+                public void run() {
+                    catchUp();
+                }
+            });
+        }
+    }
+
+    /*
+     * Wallet data was written locally. While offline, the wallet is
+     * remembered so that catchUp pushes it first.
+     */
+    void walletEdited(String uuid) {
+        if (!mOffline) {
+            return;
+        }
+        synchronized (mDirtyLock) {
+            mOfflineDirty.add(uuid);
+        }
     }
 
     void lostConnectivity() {
         pause();
+        if (mOffline) {
+            return;
+        }
+        synchronized (mDirtyLock) {
+            // Remote changes that have not been applied yet still need a
+            // look once we are back
+            mOfflineDirty.addAll(mDirtyWallets);
+        }
+        mOffline = true;
+        // The periodic lanes restart from catchUp once we are back online
+        mTimers.cancel(SYNC_TIMER);
+        mTimers.cancel(EXCHANGE_TIMER);
+        disconnectWatchers();
+    }
+
+    /*
+     * Run one prioritized burst instead of replaying whatever was missed
+     * while offline: reconnect watchers, sync the account and the wallets
+     * that changed while offline, and refresh exchange rates once the syncs
+     * have gone out. The other wallets wait for the next periodic sync.
+     */
+    private void catchUp() {
+        AirbitzCore.logi("Connectivity restored, catching up");
+        List<String> dirty;
+        synchronized (mDirtyLock) {
+            dirty = new ArrayList<String>(mOfflineDirty);
+            mOfflineDirty.clear();
+        }
+        connectWatchers();
+        syncData(dirty);
+        sendIfNotEmptying(mDataExecutor, new Runnable() {
+            public void run() {
+                queueExchangeRateUpdate();
+            }
+        });
     }
 
     public void stopExchangeRateUpdates() {
+        mTimers.cancel(EXCHANGE_TIMER);
         if (null != mExchangeExecutor) {
             mExchangeExecutor.shutdownNow();
-            mExchangeExecutor = Executors.newScheduledThreadPool(1);
+            mExchangeExecutor = new InstrumentedExecutor("exchange");
         }
     }
 
@@ -437,7 +833,8 @@ class Engine {
 
     public void updateExchangeRates() {
         AirbitzCore.logi("updateExchangeRates");
-        if ((mExchangeFuture != null && !mExchangeFuture.isDone())
+        if (mOffline
+                || mTimers.isPending(EXCHANGE_TIMER)
                 || mExchangeExecutor == null
                 || mExchangeExecutor.isShutdown()) {
             return;
@@ -465,16 +862,21 @@ class Engine {
                 });
             }
         }
-        mExchangeFuture = mExchangeExecutor.schedule(new Runnable() {
+        mTimers.schedule(EXCHANGE_TIMER,
+                ABC_EXCHANGE_RATE_REFRESH_INTERVAL_SECONDS * 1000, REFRESH_SLACK_MS,
+                new Runnable() {
             public void run() {
                 AirbitzCore.logi("Schedule mExchangeExecutor");
                 queueExchangeRateUpdate();
             }
-        }, ABC_EXCHANGE_RATE_REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        });
     }
 
     void requestExchangeRateUpdate(final Account account, final String currency) {
-        mExchangeExecutor.submit(new Runnable() {
+        if (mOffline) {
+            return;
+        }
+        sendIfNotEmptying(mExchangeExecutor, new Runnable() {
             public void run() {
                 AirbitzCore.getApi().exchangeCache().update(account, currency);
             }
@@ -482,9 +884,10 @@ class Engine {
     }
 
     public void stopFileSyncUpdates() {
+        mTimers.cancel(SYNC_TIMER);
         if (null != mDataExecutor) {
             mDataExecutor.shutdownNow();
-            mDataExecutor = Executors.newScheduledThreadPool(1);
+            mDataExecutor = new InstrumentedExecutor("data");
         }
     }
 
@@ -501,8 +904,17 @@ class Engine {
     }
 
     public void syncAllData() {
-        AirbitzCore.logi("syncAllData");
-        if ((mDataFuture != null && !mDataFuture.isDone())
+        syncData(mAccount.walletIds());
+    }
+
+    /*
+     * Syncs the account and the given wallets, then schedules the next
+     * periodic sync of everything.
+     */
+    private void syncData(List<String> uuids) {
+        AirbitzCore.logi("syncData {} wallets", uuids.size());
+        if (mOffline
+                || mTimers.isPending(SYNC_TIMER)
                 || mDataExecutor == null
                 || mDataExecutor.isShutdown()) {
             return;
@@ -520,7 +932,11 @@ class Engine {
                 SWIGTYPE_p_long pchange = core.new_longp();
                 SWIGTYPE_p_bool passwordChange = Jni.newBool(Jni.getCPtr(pchange));
 
+                long start = Instrumentation.start();
+                long trace = Trace.begin();
                 core.ABC_DataSyncAccount(mAccount.username(), mAccount.password(), dirty, passwordChange, error);
+                Instrumentation.call("core.ABC_DataSyncAccount", start);
+                Trace.end("ABC_DataSyncAccount", null, trace, 1);
                 if (error.getCode() == tABC_CC.ABC_CC_InvalidOTP) {
                     final AirbitzException e = new AirbitzException(error.getCode(), error);
                     if (mAccount.isLoggedIn() && mAccount.mCallbacks != null) {
@@ -536,8 +952,8 @@ class Engine {
                         });
                     }
                 } else if (Jni.getBytesAtPtr(Jni.getCPtr(pdirty), 1)[0] != 0) {
-                    // Data changed remotel
-                    receiveDataSyncUpdate();
+                    // Data changed remotely
+                    receiveAccountDataSyncUpdate();
                 } else if (Jni.getBytesAtPtr(Jni.getCPtr(pchange), 1)[0] != 0) {
                     if (mAccount.mCallbacks != null) {
                         mMainHandler.submit(new Runnable() {
@@ -550,7 +966,6 @@ class Engine {
             }
         });
 
-        List<String> uuids = mAccount.walletIds();
         for (String uuid : uuids) {
             requestWalletDataSync(uuid);
         }
@@ -578,41 +993,53 @@ class Engine {
             }
         });
         // Repeat the data sync
-        mDataFuture = mDataExecutor.schedule(new Runnable() {
+        mTimers.schedule(SYNC_TIMER,
+                ABC_SYNC_REFRESH_INTERVAL_SECONDS * 1000, REFRESH_SLACK_MS,
+                new Runnable() {
             public void run() {
                 AirbitzCore.logi("Schedule mDataExecutor");
                 queueSyncAllData();
             }
-        }, ABC_SYNC_REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        });
     }
 
-    private boolean allWalletsSynced() {
-        List<String> ids = mAccount.walletIds();
-        int walletCount = ids != null ? ids.size() : 0;
-        int syncedCount = 0;
-        if (ids != null) {
-            for (String id : ids) {
-                Boolean synced = mWalletSynced.get(id);
-                if (synced == null) {
-                    mWalletSynced.put(id, false);
-                } else if (synced) {
-                    syncedCount++;
-                }
-            }
-            return walletCount == syncedCount;
-        } else {
-            return false;
-        }
+    Account.SyncProgress syncProgress() {
+        Account.SyncProgress progress = new Account.SyncProgress();
+        progress.walletCount = mSyncTracker.size();
+        progress.loading = mSyncTracker.count(SyncTracker.State.LOADING);
+        progress.watching = mSyncTracker.count(SyncTracker.State.WATCHING);
+        progress.addressesChecked =
+            mSyncTracker.count(SyncTracker.State.ADDRESSES_CHECKED);
+        progress.synced = mSyncTracker.count(SyncTracker.State.SYNCED);
+        progress.etaMillis = mSyncTracker.eta();
+        progress.loaded = mSyncTracker.isCompleted();
+        return progress;
+    }
+
+    private void notifyWalletsLoaded() {
+        mTimers.cancel(LOADED_TIMER);
+        sendIfNotEmptying(mMainHandler, mWalletsLoaded);
     }
 
     private void requestWalletDataSync(final String uuid) {
-        mDataExecutor.submit(new Runnable() {
+        if (mOffline) {
+            walletEdited(uuid);
+            return;
+        }
+        sendIfNotEmptying(mDataExecutor, new Runnable() {
             public void run() {
                 tABC_Error error = new tABC_Error();
                 SWIGTYPE_p_long pdirty = core.new_longp();
                 SWIGTYPE_p_bool dirty = Jni.newBool(Jni.getCPtr(pdirty));
 
+                long start = Instrumentation.start();
+                long trace = Trace.begin();
                 core.ABC_DataSyncWallet(mAccount.username(), mAccount.password(), uuid, dirty, error);
+                Instrumentation.call("core.ABC_DataSyncWallet", start);
+                Trace.end("ABC_DataSyncWallet", uuid, trace, 1);
+                if (mSyncTracker.dataSynced(uuid)) {
+                    notifyWalletsLoaded();
+                }
                 mMainHandler.submit(new Runnable() {
                     public void run() {
                         if (!mDataFetched) {
@@ -621,7 +1048,7 @@ class Engine {
                     }
                 });
                 if (Jni.getBytesAtPtr(Jni.getCPtr(pdirty), 1)[0] != 0) {
-                    receiveDataSyncUpdate();
+                    receiveWalletDataSyncUpdate(uuid);
                 }
             }
         });
@@ -646,93 +1073,147 @@ class Engine {
 
         tABC_AsyncBitCoinInfo info = Jni.newAsyncBitcoinInfo(asyncBitCoinInfo_ptr);
         tABC_AsyncEventType type = info.getEventType();
-        AirbitzCore.logi("asyncBitCoinInfo callback type = " + type.toString());
+        if (Instrumentation.enabled()) {
+            Instrumentation.count("event." + type);
+        }
+        AirbitzCore.logi("asyncBitCoinInfo callback type = {}", type);
+        // Only events that name a transaction touch the history, and only
+        // that transaction is fetched again
+        String txid = info.getSzTxID();
+        if (type != tABC_AsyncEventType.ABC_AsyncEventType_BlockHeightChange
+                && info.getSzWalletUUID() != null
+                && txid != null && !"".equals(txid.trim())) {
+            mAccount.history(info.getSzWalletUUID()).changed(txid);
+        }
+        long trace = Trace.begin();
+        handleAsyncBitcoinInfo(info, type);
+        if (trace != 0) {
+            Trace.end("event." + type, info.getSzWalletUUID(), trace, 1);
+        }
+    }
+
+    private void handleAsyncBitcoinInfo(tABC_AsyncBitCoinInfo info, tABC_AsyncEventType type) {
         if (type == tABC_AsyncEventType.ABC_AsyncEventType_IncomingBitCoin) {
-            final String walletId = info.getSzWalletUUID();
-            final String txId = info.getSzTxID();
-            mMainHandler.submit(new Runnable() {
-                public void run() {
-                    if (mAccount.mCallbacks == null) {
-                        return;
-                    }
-                    Wallet wallet = mAccount.wallet(walletId);
-                    if (wallet != null) {
-                        Transaction tx = wallet.transaction(txId);
-                        mAccount.mCallbacks.incomingBitcoin(wallet, tx);
-                    }
-                }
-            });
-            reloadWallets();
+            mEventDispatcher.post(EventDispatcher.Type.INCOMING_BITCOIN,
+                    info.getSzWalletUUID(), info.getSzTxID());
         } else if (type == tABC_AsyncEventType.ABC_AsyncEventType_BlockHeightChange) {
             mMainHandler.submit(new Runnable() {
                 public void run() {
-                    mAccount.mSettings = null;
                     if (mAccount.mCallbacks != null) {
                         mAccount.mCallbacks.blockHeightChanged();
                     }
                 }
             });
         } else if (type == tABC_AsyncEventType.ABC_AsyncEventType_AddressCheckDone) {
-            // Check to see if all the wallets have finished sync-ing before notifying...
             final String walletId = info.getSzWalletUUID();
-            mWalletSynced.put(walletId, true);
             if (null != walletId) {
-                mMainHandler.submit(new Runnable() {
-                    public void run() {
-                        if (mAccount.mCallbacks != null) {
-                            final Wallet wallet = mAccount.wallet(walletId);
-                            wallet.bAddressesChecked = true;
-                            mAccount.mCallbacks.walletChanged(wallet);
-                        }
-                    }
-                });
-            }
-            if (allWalletsSynced()) {
-                if (mLoadedFuture != null && mLoadedFuture.isDone()) {
-                    mLoadedFuture.cancel(false);
+                if (mSyncTracker.addressesChecked(walletId)) {
+                    notifyWalletsLoaded();
                 }
-                mMainHandler.submit(mWalletsLoaded);
+                mEventDispatcher.post(EventDispatcher.Type.ADDRESS_CHECK_DONE,
+                        walletId, null);
             }
         } else if (type == tABC_AsyncEventType.ABC_AsyncEventType_BalanceUpdate) {
-            final String uuid = info.getSzWalletUUID();
-            final String txid = info.getSzTxID();
-            if (mAccount.mCallbacks != null) {
-                // Throttle balance update callbacks
-                if (mBalanceUpdateFuture.get(uuid) != null) {
-                    mBalanceUpdateFuture.get(uuid).cancel(false);
-                }
-                mBalanceUpdateFuture.put(uuid, mMainHandler.schedule(new Runnable() {
+            mEventDispatcher.post(EventDispatcher.Type.BALANCE_UPDATE,
+                    info.getSzWalletUUID(), info.getSzTxID());
+            // In case we don't receive all the Done callbacks
+            if (!mSyncTracker.isCompleted()) {
+                mTimers.schedule(LOADED_TIMER, BLOCKCHAIN_WAIT * 1000, new Runnable() {
                     public void run() {
-                        final Wallet wallet = mAccount.wallet(uuid);
-                        if (wallet != null) {
-                            final Transaction tx = wallet.transaction(txid);
-                            mAccount.mCallbacks.balanceUpdate(wallet, tx);
+                        if (mSyncTracker.complete()) {
+                            sendIfNotEmptying(mMainHandler, mWalletsLoaded);
                         }
-                        reloadWallets();
                     }
-                }, BALANCE_CHANGE_DELAY_SECONDS, TimeUnit.SECONDS));
-            }
-            // In case we don't receive all the Done callbacks
-            if (mLoadedFuture != null && mLoadedFuture.isDone()) {
-                mLoadedFuture.cancel(false);
+                });
             }
-            mLoadedFuture = mMainHandler.schedule(mWalletsLoaded, BLOCKCHAIN_WAIT, TimeUnit.SECONDS);
         } else if (type == tABC_AsyncEventType.ABC_AsyncEventType_IncomingSweep) {
             final String uuid = info.getSzWalletUUID();
             final String txid = info.getSzTxID();
             final long amount = Jni.get64BitLongAtPtr(Jni.getCPtr(info.getSweepSatoshi()));
             if (mAccount.mCallbacks != null) {
-                mMainHandler.schedule(new Runnable() {
+                mTimers.schedule(null, BALANCE_CHANGE_DELAY_SECONDS * 1000, new Runnable() {
                     public void run() {
-                        final Wallet wallet = mAccount.wallet(uuid);
-                        Transaction tx = null;
-                        if (txid != null && !"".equals(txid.trim())) {
-                            tx = wallet.transaction(txid);
+                        sendIfNotEmptying(mMainHandler, new Runnable() {
+                            public void run() {
+                                final Wallet wallet = mAccount.wallet(uuid);
+                                Transaction tx = null;
+                                if (txid != null && !"".equals(txid.trim())) {
+                                    tx = wallet.transaction(txid);
+                                }
+                                mAccount.mCallbacks.sweep(wallet, tx, amount);
+                                reloadWallets();
+                            }
+                        });
+                    }
+                });
+            }
+        }
+    }
+
+    /*
+     * Handles a batch from the EventDispatcher. Each affected wallet is
+     * refreshed once, then the callbacks for that wallet are emitted in the
+     * order the events arrived.
+     */
+    private void dispatchEvents(final List<EventDispatcher.Event> events) {
+        final Map<String, List<EventDispatcher.Event>> byWallet =
+            new LinkedHashMap<String, List<EventDispatcher.Event>>();
+        for (EventDispatcher.Event event : events) {
+            List<EventDispatcher.Event> list = byWallet.get(event.walletId);
+            if (list == null) {
+                list = new ArrayList<EventDispatcher.Event>();
+                byWallet.put(event.walletId, list);
+            }
+            list.add(event);
+        }
+        if (mReloadExecutor == null
+                || mReloadExecutor.isShutdown()
+                || !mAccount.isLoggedIn()) {
+            return;
+        }
+        Instrumentation.size("size.eventBatch", events.size());
+        mReloadExecutor.submit(new Runnable() {
+            public void run() {
+                long trace = Trace.begin();
+                final List<Wallet> wallets = new ArrayList<Wallet>();
+                for (String uuid : byWallet.keySet()) {
+                    wallets.add(getWalletFromCore(uuid));
+                }
+                Trace.end("dispatchEvents", null, trace, events.size());
+                sendIfNotEmptying(mMainHandler, new Runnable() {
+                    public void run() {
+                        boolean missing = false;
+                        for (Wallet wallet : wallets) {
+                            if (!mAccount.updateWallet(wallet)) {
+                                missing = true;
+                                continue;
+                            }
+                            emitEvents(wallet, byWallet.get(wallet.id()));
+                        }
+                        if (missing) {
+                            // Wallet is not in the list yet, reload them all
+                            reloadWallets();
+                        } else if (mAccount.mCallbacks != null) {
+                            mAccount.mCallbacks.walletsChanged();
                         }
-                        mAccount.mCallbacks.sweep(wallet, tx, amount);
-                        reloadWallets();
+                        loadFocusedHistory();
                     }
-                }, BALANCE_CHANGE_DELAY_SECONDS, TimeUnit.SECONDS);
+                });
+            }
+        });
+    }
+
+    private void emitEvents(Wallet wallet, List<EventDispatcher.Event> events) {
+        if (mAccount.mCallbacks == null) {
+            return;
+        }
+        for (EventDispatcher.Event event : events) {
+            if (event.type == EventDispatcher.Type.INCOMING_BITCOIN) {
+                mAccount.mCallbacks.incomingBitcoin(wallet, wallet.transaction(event.txId));
+            } else if (event.type == EventDispatcher.Type.BALANCE_UPDATE) {
+                mAccount.mCallbacks.balanceUpdate(wallet, wallet.transaction(event.txId));
+            } else if (event.type == EventDispatcher.Type.ADDRESS_CHECK_DONE) {
+                mAccount.mCallbacks.walletChanged(wallet);
             }
         }
     }
@@ -741,6 +1222,7 @@ class Engine {
         tABC_CC result;
         tABC_Error error = new tABC_Error();
         Wallet wallet = new Wallet(mAccount, uuid);
+        wallet.bAddressesChecked = mSyncTracker.isAddressesChecked(uuid);
         if (null != mWatcherTasks.get(uuid)) {
             // Load Wallet name
             SWIGTYPE_p_long pName = core.new_longp();
@@ -768,10 +1250,11 @@ class Engine {
 
             // Load balance
             SWIGTYPE_p_int64_t l = core.new_int64_tp();
+            long start = Instrumentation.start();
             result = core.ABC_WalletBalance(mAccount.username(), uuid, l, error);
+            Instrumentation.call("core.ABC_WalletBalance", start);
             if (result == tABC_CC.ABC_CC_Ok) {
                 wallet.balance(Jni.get64BitLongAtPtr(Jni.getCPtr(l)));
-                wallet.loadTransactions();
             } else {
                 wallet.balance(0);
             }
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Used internally only. Collects async core events for a short window,
+ * dropping duplicates by wallet, txid and event type, and then hands the
+ * batch to the engine in the order the events first arrived.
+ */
+class EventDispatcher {
+    static final int WINDOW_MS = 500;
+    static final int MAX_EVENTS = 64;
+
+    enum Type {
+        INCOMING_BITCOIN,
+        BALANCE_UPDATE,
+        ADDRESS_CHECK_DONE
+    }
+
+    static class Event {
+        final Type type;
+        final String walletId;
+        final String txId;
+
+        Event(Type type, String walletId, String txId) {
+            this.type = type;
+            this.walletId = walletId;
+            this.txId = txId;
+        }
+
+        String key() {
+            return walletId + ":" + txId + ":" + type;
+        }
+    }
+
+    interface Listener {
+        public void onEvents(List<Event> events);
+    }
+
+    private final Listener mListener;
+    private TimerWheel mTimers;
+    private ExecutorService mExecutor;
+    private TimerWheel.Timeout mFlushTimeout;
+    private Map<String, Event> mPending = new LinkedHashMap<String, Event>();
+
+    EventDispatcher(Listener listener) {
+        mListener = listener;
+    }
+
+    synchronized void start(TimerWheel timers, ExecutorService executor) {
+        mTimers = timers;
+        mExecutor = executor;
+        mPending.clear();
+    }
+
+    synchronized void stop() {
+        if (mFlushTimeout != null) {
+            mFlushTimeout.cancel();
+            mFlushTimeout = null;
+        }
+        mPending.clear();
+        mExecutor = null;
+    }
+
+    synchronized void post(Type type, String walletId, String txId) {
+        if (walletId == null || mExecutor == null || mExecutor.isShutdown()) {
+            return;
+        }
+        Event event = new Event(type, walletId, txId);
+        if (!mPending.containsKey(event.key())) {
+            mPending.put(event.key(), event);
+        }
+        if (mPending.size() >= MAX_EVENTS) {
+            if (mFlushTimeout != null) {
+                mFlushTimeout.cancel();
+                mFlushTimeout = null;
+            }
+            mExecutor.submit(mFlush);
+        } else if (mFlushTimeout == null) {
+            mFlushTimeout = mTimers.schedule(null, WINDOW_MS, new Runnable() {
+                public void run() {
+                    submitFlush();
+                }
+            });
+        }
+    }
+
+    private synchronized void submitFlush() {
+        mFlushTimeout = null;
+        if (mExecutor != null && !mExecutor.isShutdown()) {
+            mExecutor.submit(mFlush);
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            List<Event> events;
+            synchronized (EventDispatcher.this) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                events = new ArrayList<Event>(mPending.values());
+                mPending.clear();
+            }
+            mListener.onEvents(events);
+        }
+    };
+}
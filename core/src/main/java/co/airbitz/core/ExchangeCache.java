@@ -56,8 +56,10 @@ public class ExchangeCache {
     public void update(final Account account, final String currency) {
         int num = Currencies.instance().map(currency);
         tABC_Error error = new tABC_Error();
+        long start = Instrumentation.start();
         core.ABC_RequestExchangeRateUpdate(
             account.username(), account.password(), num, error);
+        Instrumentation.call("core.ABC_RequestExchangeRateUpdate", start);
     }
 
     /**
@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+
+package co.airbitz.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ExportCheckpoint remembers what earlier exports have written, so the next
+ * export only contains transactions that are new or whose {@link
+ * MetadataSet} has changed. Pass it to {@link ExportOptions#checkpoint
+ * ExportOptions.checkpoint}; a successful export advances it. Persist it
+ * between runs with {@link #token token} and {@link #fromToken fromToken}.
+ * <p>
+ * To keep the token small, confirmed transactions more than a settle
+ * window older than the newest export are forgotten, and everything dated
+ * before that point counts as exported. Metadata edits to those older
+ * transactions are not picked up. Neither are transactions that first
+ * show up with a date before that point, such as ones found by a rescan of
+ * the wallet or an old sweep; export them with a fresh checkpoint or a
+ * full export. Both the token and the work done by an export grow with the
+ * activity inside the window, not with the whole history.
+ */
+public class ExportCheckpoint {
+    private static final int VERSION = 1;
+
+    /** Seconds a transaction is tracked for after newer ones are exported */
+    public static final long DEFAULT_SETTLE_WINDOW = 30L * 24 * 60 * 60;
+
+    private final Map<String, Mark> mWallets = new HashMap<String, Mark>();
+    private final long mSettleWindow;
+
+    /*
+     * What has been exported from one wallet. Transactions dated before
+     * settled are all exported; later ones are tracked by a short hash of
+     * their txid.
+     */
+    static class Mark {
+        long lastTime;
+        long settled;
+        final Map<Long, Entry> exported = new HashMap<Long, Entry>();
+    }
+
+    static class Entry {
+        final int meta;
+        final long time;
+        final boolean confirmed;
+
+        Entry(int meta, long time, boolean confirmed) {
+            this.meta = meta;
+            this.time = time;
+            this.confirmed = confirmed;
+        }
+    }
+
+    /**
+     * Create an empty checkpoint, which exports everything.
+     */
+    public ExportCheckpoint() {
+        this(DEFAULT_SETTLE_WINDOW);
+    }
+
+    /**
+     * Create an empty checkpoint with its own settle window.
+     * @param settleWindow seconds that confirmed transactions are still
+     *      checked for metadata changes after newer ones were exported
+     */
+    public ExportCheckpoint(long settleWindow) {
+        mSettleWindow = settleWindow;
+    }
+
+    /**
+     * Restore a checkpoint saved with {@link #token token}.
+     * @throws IllegalArgumentException if the token is not valid
+     */
+    public static ExportCheckpoint fromToken(String token) {
+        if (token == null || token.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid export checkpoint");
+        }
+        byte[] bytes = new byte[token.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(token.charAt(i * 2), 16);
+            int lo = Character.digit(token.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid export checkpoint");
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(bytes)));
+            if (in.readInt() != VERSION) {
+                throw new IllegalArgumentException("Unsupported export checkpoint");
+            }
+            ExportCheckpoint checkpoint = new ExportCheckpoint(in.readLong());
+            int wallets = in.readInt();
+            for (int i = 0; i < wallets; i++) {
+                Mark mark = new Mark();
+                String id = in.readUTF();
+                mark.lastTime = in.readLong();
+                mark.settled = in.readLong();
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    long tx = in.readLong();
+                    int meta = in.readInt();
+                    long time = in.readLong();
+                    boolean confirmed = in.readBoolean();
+                    mark.exported.put(tx, new Entry(meta, time, confirmed));
+                }
+                checkpoint.mWallets.put(id, mark);
+            }
+            in.close();
+            return checkpoint;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid export checkpoint", e);
+        }
+    }
+
+    /**
+     * Save the checkpoint as an opaque string.
+     */
+    public synchronized String token() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+            out.writeInt(VERSION);
+            out.writeLong(mSettleWindow);
+            out.writeInt(mWallets.size());
+            for (Map.Entry<String, Mark> entry : mWallets.entrySet()) {
+                Mark mark = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(mark.lastTime);
+                out.writeLong(mark.settled);
+                out.writeInt(mark.exported.size());
+                for (Map.Entry<Long, Entry> tx : mark.exported.entrySet()) {
+                    out.writeLong(tx.getKey());
+                    out.writeInt(tx.getValue().meta);
+                    out.writeLong(tx.getValue().time);
+                    out.writeBoolean(tx.getValue().confirmed);
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            // Not possible writing to memory
+            throw new IllegalStateException(e);
+        }
+        StringBuilder token = new StringBuilder(bytes.size() * 2);
+        for (byte b : bytes.toByteArray()) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16));
+            token.append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Retrieve the date of the newest transaction exported from a wallet.
+     * @return the timestamp in seconds, or 0 if nothing has been exported
+     */
+    public synchronized long lastExportTime(Wallet wallet) {
+        Mark mark = mWallets.get(wallet.id());
+        return mark != null ? mark.lastTime : 0;
+    }
+
+    /**
+     * @return the timestamp in seconds before which every transaction of
+     *      the wallet counts as exported, or 0
+     */
+    synchronized long settled(Wallet wallet) {
+        Mark mark = mWallets.get(wallet.id());
+        return mark != null ? mark.settled : 0;
+    }
+
+    /**
+     * @return true if the transaction is new or its metadata has changed
+     *      since it was last exported. An unknown transaction dated before
+     *      the settled point is taken as exported and forgotten, even if it
+     *      only just arrived.
+     */
+    synchronized boolean isChanged(Wallet wallet, Transaction tx) {
+        Mark mark = mWallets.get(wallet.id());
+        if (mark == null) {
+            return true;
+        }
+        Entry entry = mark.exported.get(txHash(tx.id()));
+        if (entry == null) {
+            return tx.date().getTime() / 1000 >= mark.settled;
+        }
+        return entry.meta != metaHash(tx.meta());
+    }
+
+    /**
+     * Record rows that were written by a completed export, then forget the
+     * confirmed ones that have fallen out of the settle window.
+     */
+    synchronized void advance(List<TransactionExporter.Row> rows) {
+        for (TransactionExporter.Row row : rows) {
+            Mark mark = mWallets.get(row.wallet.id());
+            if (mark == null) {
+                mark = new Mark();
+                mWallets.put(row.wallet.id(), mark);
+            }
+            long time = row.tx.date().getTime() / 1000;
+            mark.exported.put(txHash(row.tx.id()),
+                new Entry(metaHash(row.tx.meta()), time, row.tx.height() > 0));
+            mark.lastTime = Math.max(mark.lastTime, time);
+        }
+        for (Mark mark : mWallets.values()) {
+            prune(mark);
+        }
+    }
+
+    private void prune(Mark mark) {
+        long settled = mark.lastTime - mSettleWindow;
+        if (settled <= mark.settled) {
+            return;
+        }
+        Iterator<Entry> it = mark.exported.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            // Unconfirmed when exported, but a whole window later it has
+            // either confirmed or been dropped
+            if (entry.time < settled
+                    && (entry.confirmed || entry.time < settled - mSettleWindow)) {
+                it.remove();
+            }
+        }
+        mark.settled = settled;
+    }
+
+    /*
+     * Txids are hex, so the first 16 digits are as good as the whole id
+     * within one wallet.
+     */
+    static long txHash(String txid) {
+        long hash = 0;
+        int digits = Math.min(16, txid.length());
+        for (int i = 0; i < digits; i++) {
+            int digit = Character.digit(txid.charAt(i), 16);
+            if (digit < 0) {
+                return txid.hashCode();
+            }
+            hash = (hash << 4) | digit;
+        }
+        return hash;
+    }
+
+    static int metaHash(MetadataSet meta) {
+        int hash = 17;
+        hash = 31 * hash + hash(meta.name());
+        hash = 31 * hash + hash(meta.category());
+        hash = 31 * hash + hash(meta.notes());
+        hash = 31 * hash + (int) (meta.bizid() ^ (meta.bizid() >>> 32));
+        long fiat = Double.doubleToLongBits(meta.fiat());
+        hash = 31 * hash + (int) (fiat ^ (fiat >>> 32));
+        return hash;
+    }
+
+    private static int hash(String value) {
+        return value != null ? value.hashCode() : 0;
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Used internally only. Writes the header, one row per transaction and the
+ * footer of an export.
+ */
+abstract class ExportFormat {
+    abstract void header(Writer out) throws IOException;
+
+    abstract void row(Writer out, TransactionExporter.Row row) throws IOException;
+
+    abstract void footer(Writer out) throws IOException;
+
+    /**
+     * The combined balance of the exported wallets as of the end of the
+     * export, for formats that report one.
+     */
+    void balance(long satoshi, Date asOf) {
+    }
+
+    final String mFiatCurrency;
+    final String mLedgerId;
+    final boolean mLedger;
+
+    /**
+     * @param ledgerId the id of the account when rows from several wallets
+     *      share the export, or null for a single wallet
+     */
+    ExportFormat(ExportOptions options, String ledgerId) {
+        mFiatCurrency = options.mFiatCurrency;
+        mLedgerId = ledgerId;
+        mLedger = ledgerId != null;
+    }
+
+    static ExportFormat create(ExportOptions options, String ledger) {
+        if (options.mFormat == ExportOptions.Format.QBO) {
+            return new Qbo(options, ledger);
+        }
+        return new Csv(options, ledger);
+    }
+
+    /*
+     * Bitcoin amounts are written from satoshis without going through
+     * floating point.
+     */
+    static String btc(long satoshi) {
+        StringBuilder out = new StringBuilder();
+        if (satoshi < 0) {
+            out.append('-');
+            satoshi = -satoshi;
+        }
+        out.append(satoshi / 100000000L).append('.');
+        String fraction = Long.toString(satoshi % 100000000L);
+        for (int i = fraction.length(); i < 8; i++) {
+            out.append('0');
+        }
+        return out.append(fraction).toString();
+    }
+
+    static String fiat(double amount) {
+        return String.format(Locale.US, "%.2f", amount);
+    }
+
+    static String text(String value) {
+        return value != null ? value : "";
+    }
+
+    static class Csv extends ExportFormat {
+        private final SimpleDateFormat mDate = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        private final SimpleDateFormat mTime = new SimpleDateFormat("HH:mm:ss", Locale.US);
+
+        Csv(ExportOptions options, String ledger) {
+            super(options, ledger);
+        }
+
+        void header(Writer out) throws IOException {
+            if (mLedger) {
+                out.write("WALLET,");
+            }
+            out.write("DATE,TIME,PAYEE_PAYER_NAME,AMT_BTC,AMT_FIAT,CURRENCY,");
+            if (mFiatCurrency != null) {
+                out.write("AMT_" + mFiatCurrency + ",");
+            }
+            out.write("CATEGORY,NOTES,AMT_FEE_MINERS_BTC,AMT_FEE_PROVIDER_BTC,"
+                + "TXID,ADDRESSES\r\n");
+        }
+
+        void row(Writer out, TransactionExporter.Row row) throws IOException {
+            Transaction tx = row.tx;
+            MetadataSet meta = tx.meta();
+            Date date = tx.date();
+            if (mLedger) {
+                field(out, row.wallet.name(), false);
+            }
+            field(out, mDate.format(date), false);
+            field(out, mTime.format(date), false);
+            field(out, meta.name(), false);
+            field(out, btc(tx.amount()), false);
+            field(out, fiat(meta.fiat()), false);
+            field(out, row.wallet.currency().code, false);
+            if (mFiatCurrency != null) {
+                field(out, fiat(row.fiat), false);
+            }
+            field(out, meta.category(), false);
+            field(out, meta.notes(), false);
+            field(out, btc(tx.minerFees()), false);
+            field(out, btc(tx.providerFees()), false);
+            field(out, tx.id(), false);
+            field(out, addresses(tx.outputs()), true);
+        }
+
+        void footer(Writer out) throws IOException {
+        }
+
+        static void field(Writer out, String value, boolean last) throws IOException {
+            value = text(value);
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                    || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                out.write('"');
+                out.write(value.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+            out.write(last ? "\r\n" : ",");
+        }
+
+        private static String addresses(List<TxOutput> outputs) {
+            StringBuilder out = new StringBuilder();
+            if (outputs != null) {
+                for (TxOutput output : outputs) {
+                    if (out.length() > 0) {
+                        out.append(' ');
+                    }
+                    out.append(text(output.address()));
+                }
+            }
+            return out.toString();
+        }
+    }
+
+    /*
+     * QuickBooks Online reads the OFX 1.0.2 SGML flavour. Amounts are written
+     * in the wallet's fiat currency, or the converted currency when one is
+     * set, with the bitcoin amount in the memo. A ledger is written as a
+     * single statement.
+     */
+    static class Qbo extends ExportFormat {
+        private final SimpleDateFormat mDate = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+        private String mCurrency = "USD";
+        private boolean mStarted = false;
+        private long mBalanceSatoshi = 0;
+        private Date mBalanceDate = new Date();
+
+        Qbo(ExportOptions options, String ledger) {
+            super(options, ledger);
+            mDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        void header(Writer out) throws IOException {
+            out.write("OFXHEADER:100\r\nDATA:OFXSGML\r\nVERSION:102\r\n"
+                + "SECURITY:NONE\r\nENCODING:USASCII\r\nCHARSET:1252\r\n"
+                + "COMPRESSION:NONE\r\nOLDFILEUID:NONE\r\nNEWFILEUID:NONE\r\n\r\n");
+            out.write("<OFX>\r\n<SIGNONMSGSRSV1>\r\n<SONRS>\r\n"
+                + "<STATUS>\r\n<CODE>0\r\n<SEVERITY>INFO\r\n</STATUS>\r\n"
+                + "<DTSERVER>" + mDate.format(new Date()) + "\r\n"
+                + "<LANGUAGE>ENG\r\n<INTU.BID>3000\r\n</SONRS>\r\n</SIGNONMSGSRSV1>\r\n");
+        }
+
+        private void start(Writer out, Wallet wallet) throws IOException {
+            mCurrency = mFiatCurrency != null ? mFiatCurrency : wallet.currency().code;
+            String account = mLedger ? mLedgerId : wallet.id();
+            out.write("<BANKMSGSRSV1>\r\n<STMTTRNRS>\r\n<TRNUID>1\r\n"
+                + "<STATUS>\r\n<CODE>0\r\n<SEVERITY>INFO\r\n</STATUS>\r\n"
+                + "<STMTRS>\r\n<CURDEF>" + mCurrency + "\r\n"
+                + "<BANKACCTFROM>\r\n<BANKID>999999999\r\n"
+                + "<ACCTID>" + escape(account) + "\r\n<ACCTTYPE>CHECKING\r\n"
+                + "</BANKACCTFROM>\r\n<BANKTRANLIST>\r\n");
+            mStarted = true;
+        }
+
+        void row(Writer out, TransactionExporter.Row row) throws IOException {
+            Transaction tx = row.tx;
+            if (!mStarted) {
+                start(out, row.wallet);
+            }
+            MetadataSet meta = tx.meta();
+            double amount = mFiatCurrency != null
+                ? row.fiat
+                : Math.abs(meta.fiat()) * (tx.amount() < 0 ? -1 : 1);
+            StringBuilder memo = new StringBuilder(btc(tx.amount())).append(" BTC");
+            if (mLedger) {
+                memo.append(" // ").append(row.wallet.name());
+            }
+            if (meta.category() != null && meta.category().length() > 0) {
+                memo.append(" // ").append(meta.category());
+            }
+            if (meta.notes() != null && meta.notes().length() > 0) {
+                memo.append(" // ").append(meta.notes());
+            }
+            out.write("<STMTTRN>\r\n<TRNTYPE>" + (tx.amount() < 0 ? "DEBIT" : "CREDIT") + "\r\n"
+                + "<DTPOSTED>" + mDate.format(tx.date()) + "\r\n"
+                + "<TRNAMT>" + fiat(amount) + "\r\n"
+                + "<FITID>" + escape(tx.id()) + "\r\n"
+                + "<NAME>" + escape(truncate(text(meta.name()), 32)) + "\r\n"
+                + "<MEMO>" + escape(truncate(memo.toString(), 255)) + "\r\n"
+                + "</STMTTRN>\r\n");
+        }
+
+        @Override
+        void balance(long satoshi, Date asOf) {
+            mBalanceSatoshi = satoshi;
+            mBalanceDate = asOf;
+        }
+
+        /*
+         * The ledger balance is the wallets' real balance at the end of the
+         * range, whatever was filtered out of the rows, valued in the
+         * statement currency at the current rate.
+         */
+        void footer(Writer out) throws IOException {
+            if (!mStarted) {
+                out.write("</OFX>\r\n");
+                return;
+            }
+            double balance = AirbitzCore.getApi().exchangeCache()
+                .satoshiToCurrency(mBalanceSatoshi, mCurrency);
+            out.write("</BANKTRANLIST>\r\n<LEDGERBAL>\r\n"
+                + "<BALAMT>" + fiat(balance) + "\r\n"
+                + "<DTASOF>" + mDate.format(mBalanceDate) + "\r\n"
+                + "</LEDGERBAL>\r\n</STMTRS>\r\n</STMTTRNRS>\r\n</BANKMSGSRSV1>\r\n");
+            out.write("</OFX>\r\n");
+        }
+
+        private static String truncate(String value, int length) {
+            return value.length() > length ? value.substring(0, length) : value;
+        }
+
+        private static String escape(String value) {
+            return text(value).replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+/**
+ * Options for streaming a transaction export with {@link Wallet#export
+ * Wallet.export}. Setters return this so they can be chained.
+ */
+public class ExportOptions {
+    public enum Format {
+        CSV,
+        QBO
+    }
+
+    /**
+     * Receives progress while an export is written.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the exporting thread as rows are written.
+         * @param written the number of transactions written so far
+         * @param total the number of transactions in the export
+         */
+        public void onProgress(int written, int total);
+    }
+
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    Format mFormat = Format.CSV;
+    long mStart = 0;
+    long mEnd = 0;
+    boolean mGzip = false;
+    int mChunkSize = DEFAULT_CHUNK_SIZE;
+    String[] mCategories;
+    String mFiatCurrency;
+    ProgressListener mProgress;
+    ExportCheckpoint mCheckpoint;
+
+    /**
+     * Set the output format. Defaults to CSV.
+     */
+    public ExportOptions format(Format format) {
+        mFormat = format;
+        return this;
+    }
+
+    /**
+     * Only export transactions in a time range.
+     * @param start timestamp in seconds of the first transaction, 0 for no limit
+     * @param end timestamp in seconds after the last transaction, 0 for no limit
+     */
+    public ExportOptions timeRange(long start, long end) {
+        mStart = start;
+        mEnd = end;
+        return this;
+    }
+
+    /**
+     * Compress the output with gzip.
+     */
+    public ExportOptions gzip(boolean gzip) {
+        mGzip = gzip;
+        return this;
+    }
+
+    /**
+     * Set the number of bytes buffered before each write to the output.
+     * Defaults to 16 KB.
+     */
+    public ExportOptions chunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        mChunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Only export transactions whose category starts with one of the given
+     * prefixes, such as "Expense:" or "Income:Salary". Matching ignores
+     * case. Pass nothing to export every category.
+     */
+    public ExportOptions categories(String... prefixes) {
+        mCategories = prefixes != null && prefixes.length > 0 ? prefixes : null;
+        return this;
+    }
+
+    /**
+     * Add a column with each amount converted to a fiat currency at the
+     * current rate in the {@link ExchangeCache}.
+     * @param currency the fiat code such as USD or EUR, or null for none
+     */
+    public ExportOptions fiatCurrency(String currency) {
+        mFiatCurrency = currency;
+        return this;
+    }
+
+    /**
+     * Receive progress as rows are written.
+     */
+    public ExportOptions progress(ProgressListener listener) {
+        mProgress = listener;
+        return this;
+    }
+
+    /**
+     * Only export transactions that are new or whose metadata changed since
+     * the checkpoint. The checkpoint is advanced to include this export once
+     * it has been written successfully. Transactions dated before the
+     * checkpoint's settle window are skipped even if they were never
+     * exported, see {@link ExportCheckpoint}.
+     */
+    public ExportOptions checkpoint(ExportCheckpoint checkpoint) {
+        mCheckpoint = checkpoint;
+        return this;
+    }
+
+    boolean matches(Transaction transaction) {
+        return inRange(transaction) && inCategories(transaction);
+    }
+
+    boolean inCategories(Transaction transaction) {
+        if (mCategories == null) {
+            return true;
+        }
+        String category = transaction.meta().category();
+        if (category == null) {
+            return false;
+        }
+        for (String prefix : mCategories) {
+            if (prefix != null && category.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean inRange(Transaction transaction) {
+        long time = transaction.date().getTime() / 1000;
+        return (mStart == 0 || time >= mStart) && (mEnd == 0 || time < mEnd);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Used internally only. Collects engine timings and counts in named
+ * histograms and counters. Durations are recorded in microseconds. Recording
+ * never takes a lock, and does nothing while instrumentation is disabled.
+ */
+class Instrumentation {
+    private static final Instrumentation sInstance = new Instrumentation();
+
+    private volatile boolean mEnabled = true;
+    private ConcurrentMap<String, Histogram> mHistograms =
+        new ConcurrentHashMap<String, Histogram>();
+    private ConcurrentMap<String, AtomicLong> mCounters =
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    static Instrumentation instance() {
+        return sInstance;
+    }
+
+    static boolean enabled() {
+        return sInstance.mEnabled;
+    }
+
+    void enabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return a start time for {@link #call call}, or 0 when disabled
+     */
+    static long start() {
+        return sInstance.mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the duration of a core call started with {@link #start start}.
+     */
+    static void call(String name, long start) {
+        if (start == 0 || !sInstance.mEnabled) {
+            return;
+        }
+        sInstance.histogram(name).record(micros(System.nanoTime() - start));
+    }
+
+    static void count(String name) {
+        if (sInstance.mEnabled) {
+            sInstance.counter(name).incrementAndGet();
+        }
+    }
+
+    static void size(String name, long size) {
+        if (sInstance.mEnabled) {
+            sInstance.histogram(name).record(size);
+        }
+    }
+
+    static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private AtomicLong counter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    AirbitzCore.Metrics snapshot() {
+        AirbitzCore.Metrics metrics = new AirbitzCore.Metrics();
+        metrics.timestamp = System.currentTimeMillis();
+        metrics.histograms = new TreeMap<String, AirbitzCore.HistogramStats>();
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            metrics.histograms.put(e.getKey(), e.getValue().stats());
+        }
+        metrics.counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : mCounters.entrySet()) {
+            metrics.counters.put(e.getKey(), e.getValue().get());
+        }
+        return metrics;
+    }
+
+    /*
+     * Histograms are cleared in place since executors hold on to theirs.
+     */
+    void reset() {
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : mCounters.values()) {
+            counter.set(0);
+        }
+    }
+}
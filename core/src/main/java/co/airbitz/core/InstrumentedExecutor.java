@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Used internally only. A single threaded scheduled executor that records
+ * how long each task waited in the queue and how long it ran, under
+ * "task.&lt;lane&gt;.wait" and "task.&lt;lane&gt;.run".
+ */
+class InstrumentedExecutor extends ScheduledThreadPoolExecutor {
+    private final Histogram mWait;
+    private final Histogram mRun;
+
+    InstrumentedExecutor(String lane) {
+        super(1);
+        mWait = Instrumentation.instance().histogram("task." + lane + ".wait");
+        mRun = Instrumentation.instance().histogram("task." + lane + ".run");
+    }
+
+    @Override
+    protected <V> RunnableScheduledFuture<V> decorateTask(
+            Runnable runnable, RunnableScheduledFuture<V> task) {
+        return decorate(task);
+    }
+
+    @Override
+    protected <V> RunnableScheduledFuture<V> decorateTask(
+            Callable<V> callable, RunnableScheduledFuture<V> task) {
+        return decorate(task);
+    }
+
+    private <V> RunnableScheduledFuture<V> decorate(RunnableScheduledFuture<V> task) {
+        if (!Instrumentation.enabled()) {
+            return task;
+        }
+        return new TimedTask<V>(task);
+    }
+
+    private class TimedTask<V> implements RunnableScheduledFuture<V> {
+        private final RunnableScheduledFuture<V> mTask;
+        private long mReadyAt;
+
+        TimedTask(RunnableScheduledFuture<V> task) {
+            mTask = task;
+            mReadyAt = readyAt();
+        }
+
+        // A delayed task only starts waiting once its delay has passed
+        private long readyAt() {
+            return System.nanoTime()
+                + Math.max(mTask.getDelay(TimeUnit.NANOSECONDS), 0);
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                mTask.run();
+            } finally {
+                long end = System.nanoTime();
+                mWait.record(Instrumentation.micros(start - mReadyAt));
+                mRun.record(Instrumentation.micros(end - start));
+                if (mTask.isPeriodic()) {
+                    mReadyAt = readyAt();
+                }
+            }
+        }
+
+        public boolean isPeriodic() {
+            return mTask.isPeriodic();
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return mTask.getDelay(unit);
+        }
+
+        public int compareTo(Delayed other) {
+            if (other instanceof TimedTask) {
+                // Keep the submission order tie-break of the wrapped tasks
+                return mTask.compareTo(((TimedTask) other).mTask);
+            }
+            return mTask.compareTo(other);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return mTask.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return mTask.isCancelled();
+        }
+
+        public boolean isDone() {
+            return mTask.isDone();
+        }
+
+        public V get() throws InterruptedException, ExecutionException {
+            return mTask.get();
+        }
+
+        public V get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return mTask.get(timeout, unit);
+        }
+    }
+}
@@ -211,7 +211,11 @@ public class ReceiveAddress {
         core.ABC_FinalizeReceiveRequest(
                 mAccount.username(), mAccount.password(),
                 mWallet.id(), mAddress, error);
-        return error.getCode() == tABC_CC.ABC_CC_Ok;
+        if (error.getCode() == tABC_CC.ABC_CC_Ok) {
+            mAccount.engine().walletEdited(mWallet.id());
+            return true;
+        }
+        return false;
     }
 
     /**
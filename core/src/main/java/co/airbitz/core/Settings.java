@@ -32,6 +32,7 @@
 package co.airbitz.core;
 
 import java.util.Currency;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
@@ -54,6 +55,37 @@ public class Settings {
 
     private Account mAccount;
     private tABC_AccountSettings mSettings;
+    private volatile int mVersion;
+    private volatile int mDecimalPlaces = 8;
+    private volatile String mBtcSymbol = "";
+    private volatile CoreCurrency mCurrency;
+    private Map<String, Object> mSaved;
+
+    /**
+     * A single field that changed, keyed in the diff by the name of the
+     * setter, such as "currency" or "secondsAutoLogout". Currencies are
+     * reported by code and denominations by {@link BitcoinDenomination#type
+     * type}. A change to the PIN is reported without its old or new value.
+     */
+    public static class Change {
+        public final String field;
+        public final Object oldValue;
+        public final Object newValue;
+
+        Change(String field, Object oldValue, Object newValue) {
+            this.field = field;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+
+    /**
+     * Notified after the settings change, either by an {@link Editor} commit
+     * or by a change synced from another device.
+     */
+    public interface OnChangeListener {
+        public void onChange(Settings settings, Map<String, Change> changes);
+    }
 
     protected Settings(Account account) {
         mAccount = account;
@@ -69,12 +101,17 @@ public class Settings {
         SWIGTYPE_p_long lp = core.new_longp();
         SWIGTYPE_p_p_sABC_AccountSettings pAccountSettings = core.longp_to_ppAccountSettings(lp);
 
+        long start = Instrumentation.start();
         core.ABC_LoadAccountSettings(mAccount.username(), mAccount.password(), pAccountSettings, error);
+        Instrumentation.call("core.ABC_LoadAccountSettings", start);
         if (error.getCode() == tABC_CC.ABC_CC_Ok) {
             mSettings = Jni.newAccountSettings(core.longp_value(lp));
             if (mSettings.getCurrencyNum() == 0) {
                 setupDefaultCurrency();
             }
+            precompute();
+            mVersion++;
+            mSaved = snapshot();
         } else {
             throw new AirbitzException(error.getCode(), error);
         }
@@ -85,25 +122,344 @@ public class Settings {
         return mSettings;
     }
 
+    /*
+     * Formatting reads these for every amount, so work them out once per
+     * load instead of on each call.
+     */
+    private void precompute() {
+        int type = mSettings.getBitcoinDenomination().getDenominationType();
+        if (type == BitcoinDenomination.UBTC) {
+            mDecimalPlaces = 2;
+        } else if (type == BitcoinDenomination.MBTC) {
+            mDecimalPlaces = 5;
+        } else {
+            mDecimalPlaces = 8;
+        }
+        if (type >= BitcoinDenomination.BTC && type <= BitcoinDenomination.UBTC) {
+            mBtcSymbol = new BitcoinDenomination(type).btcSymbol();
+        } else {
+            AirbitzCore.logw("Bad bitcoin denomination from core settings");
+            mBtcSymbol = "";
+        }
+        mCurrency = Currencies.instance().lookup(
+            Currencies.instance().map(mSettings.getCurrencyNum()));
+    }
+
+    /**
+     * Returns a number that changes every time the settings are reloaded,
+     * either by a local save or by a change synced from another device.
+     * @return the settings version
+     */
+    public int version() {
+        return mVersion;
+    }
+
+    /**
+     * Retrieve the number of decimal places used to display bitcoin amounts
+     * in the preferred denomination.
+     * @return the number of decimal places
+     */
+    public int decimalPlaces() {
+        return mDecimalPlaces;
+    }
+
+    /**
+     * Retrieve the symbol of the preferred bitcoin denomination.
+     * @return the bitcoin symbol, such as "Ƀ "
+     */
+    public String btcSymbol() {
+        return mBtcSymbol;
+    }
+
+    /*
+     * Runs inside load(), before these settings are published to the
+     * account, so listeners are not told about it. A listener calling
+     * Account.settings() from here would wait on the load it is part of.
+     */
     void setupDefaultCurrency() {
-        currency(Currencies.instance().defaultCurrency().code);
         try {
-            save();
+            edit().currency(Currencies.instance().defaultCurrency().code).commit(false);
         } catch (AirbitzException e) {
             AirbitzCore.loge("setupDefaultCurrency error:");
         }
     }
 
     /**
-     * Save the settings, persisting them to disk.
+     * Save the settings, persisting them to disk. Fields changed through the
+     * setters since the last save are reported to listeners just like an
+     * {@link Editor} commit.
      */
     public void save() throws AirbitzException {
-        tABC_Error error = new tABC_Error();
-        core.ABC_UpdateAccountSettings(mAccount.username(), mAccount.password(), mSettings, error);
-        if (error.getCode() != tABC_CC.ABC_CC_Ok) {
-            throw new AirbitzException(error.getCode(), error);
+        Map<String, Change> changes;
+        synchronized (this) {
+            Map<String, Object> after = snapshot();
+            changes = diff(mSaved == null ? after : mSaved, after);
+            tABC_Error error = new tABC_Error();
+            core.ABC_UpdateAccountSettings(mAccount.username(), mAccount.password(), mSettings, error);
+            if (error.getCode() != tABC_CC.ABC_CC_Ok) {
+                throw new AirbitzException(error.getCode(), error);
+            }
+            precompute();
+            mVersion++;
+            mSaved = after;
+        }
+        if (!changes.isEmpty()) {
+            mAccount.settingsChanged(this, changes);
+        }
+    }
+
+    /**
+     * Start a batch of changes. Nothing is written until {@link
+     * Editor#commit commit}, which saves only the fields that actually
+     * changed in a single update.
+     * @return an editor for these settings
+     */
+    public Editor edit() {
+        return new Editor();
+    }
+
+    /**
+     * Records changes to the settings and applies them together.
+     */
+    public class Editor {
+        private Map<String, Object> mEdits = new LinkedHashMap<String, Object>();
+
+        Editor() {
+        }
+
+        public Editor firstName(String value) {
+            return put("firstName", value);
+        }
+
+        public Editor lastName(String value) {
+            return put("lastName", value);
+        }
+
+        public Editor nickName(String value) {
+            return put("nickName", value);
+        }
+
+        public Editor fullName(String value) {
+            return put("fullName", value);
+        }
+
+        public Editor showNameOnPayments(boolean value) {
+            return put("nameOnPayments", value);
+        }
+
+        public Editor secondsAutoLogout(int value) {
+            return put("secondsAutoLogout", value);
+        }
+
+        public Editor recoveryReminderCount(int value) {
+            return put("recoveryReminderCount", value);
+        }
+
+        public Editor language(String value) {
+            return put("language", value);
+        }
+
+        public Editor currency(String currencyCode) {
+            return put("currency", currencyCode);
+        }
+
+        public Editor exchangeRateSource(String value) {
+            return put("exchangeRateSource", value);
+        }
+
+        public Editor bitcoinDenomination(BitcoinDenomination value) {
+            return put("bitcoinDenomination", value.type());
+        }
+
+        public Editor overrideBitcoinServers(boolean value) {
+            return put("overrideBitcoinServers", value);
+        }
+
+        public Editor overrideServerList(String value) {
+            return put("overrideServerList", value);
+        }
+
+        public Editor dailySpendLimit(boolean value) {
+            return put("dailySpendLimit", value);
+        }
+
+        public Editor dailySpendLimitSatoshis(long value) {
+            return put("dailySpendLimitSatoshis", value);
+        }
+
+        public Editor spendRequirePin(boolean value) {
+            return put("spendRequirePin", value);
+        }
+
+        public Editor spendRequirePinSatoshis(long value) {
+            return put("spendRequirePinSatoshis", value);
+        }
+
+        public Editor pinLoginCount(int value) {
+            return put("pinLoginCount", value);
+        }
+
+        public Editor disableFingerprintLogin(boolean value) {
+            return put("disableFingerprintLogin", value);
+        }
+
+        Editor pin(String value) {
+            return put("pin", value);
         }
-        load();
+
+        Editor disablePinLogin(boolean value) {
+            return put("disablePinLogin", value);
+        }
+
+        private Editor put(String field, Object value) {
+            mEdits.put(field, value);
+            return this;
+        }
+
+        /**
+         * Write the changed fields in one update. The core does not report
+         * any normalization of the values it stores, so the settings are not
+         * reloaded after a successful update.
+         * @return the fields that changed, empty if nothing did
+         */
+        public Map<String, Change> commit() throws AirbitzException {
+            return commit(true);
+        }
+
+        Map<String, Change> commit(boolean notify) throws AirbitzException {
+            Map<String, Change> changes;
+            synchronized (Settings.this) {
+                Map<String, Object> before = snapshot();
+                Map<String, Object> after = new LinkedHashMap<String, Object>(before);
+                after.putAll(mEdits);
+                mEdits.clear();
+                changes = diff(before, after);
+                if (changes.isEmpty()) {
+                    return changes;
+                }
+                for (String field : changes.keySet()) {
+                    apply(field, after.get(field));
+                }
+                tABC_Error error = new tABC_Error();
+                core.ABC_UpdateAccountSettings(mAccount.username(), mAccount.password(), mSettings, error);
+                if (error.getCode() != tABC_CC.ABC_CC_Ok) {
+                    // Put back the old values before reporting the failure
+                    for (String field : changes.keySet()) {
+                        apply(field, before.get(field));
+                    }
+                    throw new AirbitzException(error.getCode(), error);
+                }
+                precompute();
+                mVersion++;
+                mSaved = snapshot();
+            }
+            if (notify) {
+                mAccount.settingsChanged(Settings.this, changes);
+            }
+            return changes;
+        }
+    }
+
+    private void apply(String field, Object value) {
+        if ("firstName".equals(field)) {
+            firstName((String) value);
+        } else if ("lastName".equals(field)) {
+            lastName((String) value);
+        } else if ("nickName".equals(field)) {
+            nickName((String) value);
+        } else if ("fullName".equals(field)) {
+            fullName((String) value);
+        } else if ("nameOnPayments".equals(field)) {
+            showNameOnPayments((Boolean) value);
+        } else if ("secondsAutoLogout".equals(field)) {
+            secondsAutoLogout((Integer) value);
+        } else if ("recoveryReminderCount".equals(field)) {
+            recoveryReminderCount((Integer) value);
+        } else if ("language".equals(field)) {
+            language((String) value);
+        } else if ("currency".equals(field)) {
+            settings().setCurrencyNum(Currencies.instance().map((String) value));
+        } else if ("exchangeRateSource".equals(field)) {
+            exchangeRateSource((String) value);
+        } else if ("bitcoinDenomination".equals(field)) {
+            settings().setBitcoinDenomination(
+                new BitcoinDenomination((Integer) value).get());
+        } else if ("overrideBitcoinServers".equals(field)) {
+            overrideBitcoinServers((Boolean) value);
+        } else if ("overrideServerList".equals(field)) {
+            overrideServerList((String) value);
+        } else if ("dailySpendLimit".equals(field)) {
+            dailySpendLimit((Boolean) value);
+        } else if ("dailySpendLimitSatoshis".equals(field)) {
+            dailySpendLimitSatoshis((Long) value);
+        } else if ("spendRequirePin".equals(field)) {
+            spendRequirePin((Boolean) value);
+        } else if ("spendRequirePinSatoshis".equals(field)) {
+            spendRequirePinSatoshis((Long) value);
+        } else if ("pinLoginCount".equals(field)) {
+            pinLoginCount((Integer) value);
+        } else if ("disableFingerprintLogin".equals(field)) {
+            disableFingerprintLogin((Boolean) value);
+        } else if ("pin".equals(field)) {
+            settings().setSzPIN((String) value);
+        } else if ("disablePinLogin".equals(field)) {
+            settings().setBDisablePINLogin((Boolean) value);
+        }
+    }
+
+    /*
+     * The current value of every field an Editor can change, keyed the same
+     * way as the Change diff.
+     */
+    Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("firstName", firstName());
+        values.put("lastName", lastName());
+        values.put("nickName", nickName());
+        values.put("fullName", fullName());
+        values.put("nameOnPayments", nameOnPayments());
+        values.put("secondsAutoLogout", secondsAutoLogout());
+        values.put("recoveryReminderCount", recoveryReminderCount());
+        values.put("language", language());
+        values.put("currency", Currencies.instance().map(settings().getCurrencyNum()));
+        values.put("exchangeRateSource", exchangeRateSource());
+        values.put("bitcoinDenomination", settings().getBitcoinDenomination().getDenominationType());
+        values.put("overrideBitcoinServers", overrideBitcoinServers());
+        values.put("overrideServerList", overrideServerList());
+        values.put("dailySpendLimit", dailySpendLimit());
+        values.put("dailySpendLimitSatoshis", dailySpendLimitSatoshis());
+        values.put("spendRequirePin", spendRequirePin());
+        values.put("spendRequirePinSatoshis", spendRequirePinSatoshis());
+        values.put("pinLoginCount", pinLoginCount());
+        values.put("disableFingerprintLogin", disableFingerprintLogin());
+        values.put("pin", settings().getSzPIN());
+        values.put("disablePinLogin", settings().getBDisablePINLogin());
+        return values;
+    }
+
+    static Map<String, Change> diff(Map<String, Object> before, Map<String, Object> after) {
+        Map<String, Change> changes = new LinkedHashMap<String, Change>();
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            Object old = before.get(entry.getKey());
+            if (!equal(old, entry.getValue())) {
+                changes.put(entry.getKey(), change(entry.getKey(), old, entry.getValue()));
+            }
+        }
+        return changes;
+    }
+
+    /*
+     * Listeners are public API, so secrets are only flagged as changed.
+     */
+    private static Change change(String field, Object oldValue, Object newValue) {
+        if ("pin".equals(field)) {
+            return new Change(field, null, null);
+        }
+        return new Change(field, oldValue, newValue);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
@@ -259,6 +615,7 @@ public class Settings {
     public void currency(String currencyCode) {
         settings().setCurrencyNum(
                 Currencies.instance().map(currencyCode));
+        precompute();
     }
 
     /**
@@ -266,9 +623,8 @@ public class Settings {
      * @return the preferred currency represented as a {@link CoreCurrency}
      */
     public CoreCurrency currency() {
-        if (settings() != null) {
-            return Currencies.instance().lookup(
-                Currencies.instance().map(settings().getCurrencyNum()));
+        if (mCurrency != null) {
+            return mCurrency;
         } else {
             return Currencies.instance().defaultCurrency();
         }
@@ -297,6 +653,7 @@ public class Settings {
      */
     public void bitcoinDenomination(BitcoinDenomination value) {
         settings().setBitcoinDenomination(value.get());
+        precompute();
     }
 
     /**
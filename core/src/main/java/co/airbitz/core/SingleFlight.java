@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Used internally only. Collapses concurrent identical calls: while a call
+ * for a key is running, other callers with the same key wait for it and get
+ * its result instead of making their own. Nothing is cached once the call
+ * completes, so later callers always see fresh data.
+ */
+class SingleFlight<K, V> {
+    private ConcurrentMap<K, Call<V>> mCalls =
+        new ConcurrentHashMap<K, Call<V>>();
+
+    /*
+     * A running call and the thread running it.
+     */
+    private static class Call<V> extends FutureTask<V> {
+        final Thread owner = Thread.currentThread();
+
+        Call(Callable<V> callable) {
+            super(callable);
+        }
+    }
+
+    V execute(K key, Callable<V> callable) throws AirbitzException {
+        Call<V> call = new Call<V>(callable);
+        Call<V> running = mCalls.putIfAbsent(key, call);
+        if (running == null) {
+            running = call;
+            try {
+                call.run();
+            } finally {
+                mCalls.remove(key, call);
+            }
+        } else if (running.owner == Thread.currentThread()) {
+            // Waiting on our own call would never return
+            throw new IllegalStateException("Re-entrant call for " + key);
+        }
+        return get(running);
+    }
+
+    /**
+     * Same as {@link #execute execute}, for calls that cannot throw an
+     * AirbitzException.
+     */
+    V run(K key, Callable<V> callable) {
+        try {
+            return execute(key, callable);
+        } catch (AirbitzException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private V get(FutureTask<V> task) throws AirbitzException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // Another caller's result is on its way, don't abandon it
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AirbitzException) {
+                throw (AirbitzException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -191,7 +191,9 @@ public class Spend {
         SWIGTYPE_p_long tx = core.new_longp();
         SWIGTYPE_p_p_char pRawTx = core.longp_to_ppChar(tx);
 
+        long trace = Trace.begin();
         core.ABC_SpendSignTx(mSpend, pRawTx, error);
+        Trace.end("ABC_SpendSignTx", mWallet.id(), trace, 1);
         if (error.getCode() != tABC_CC.ABC_CC_Ok) {
             throw new AirbitzException(error.getCode(), error);
         } else {
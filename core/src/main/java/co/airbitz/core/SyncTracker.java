@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Used internally only. Tracks each wallet through loading, watching,
+ * addresses checked and synced, keeping a count per state so the aggregate
+ * progress can be read without walking the wallet list.
+ */
+class SyncTracker {
+    enum State {
+        LOADING,
+        WATCHING,
+        ADDRESSES_CHECKED,
+        SYNCED
+    }
+
+    private static class Entry {
+        State state = State.LOADING;
+        boolean addressesChecked;
+        boolean dataSynced;
+    }
+
+    private Map<String, Entry> mWallets = new HashMap<String, Entry>();
+    private int[] mCounts = new int[State.values().length];
+    private long mStartedAt;
+    private boolean mCompleted;
+
+    synchronized void reset() {
+        mWallets.clear();
+        mCounts = new int[State.values().length];
+        mStartedAt = System.currentTimeMillis();
+        mCompleted = false;
+    }
+
+    synchronized void track(String uuid) {
+        entry(uuid);
+    }
+
+    /**
+     * @return true if the removed wallet was the last one holding up the load
+     */
+    synchronized boolean remove(String uuid) {
+        Entry entry = mWallets.remove(uuid);
+        if (entry != null) {
+            mCounts[entry.state.ordinal()]--;
+        }
+        return checkCompleted();
+    }
+
+    synchronized void watching(String uuid) {
+        Entry entry = entry(uuid);
+        if (entry.state == State.LOADING) {
+            move(entry, State.WATCHING);
+        }
+    }
+
+    /**
+     * @return true if this wallet was the last one to finish syncing
+     */
+    synchronized boolean addressesChecked(String uuid) {
+        Entry entry = entry(uuid);
+        entry.addressesChecked = true;
+        advance(entry);
+        return checkCompleted();
+    }
+
+    /**
+     * @return true if this wallet was the last one to finish syncing
+     */
+    synchronized boolean dataSynced(String uuid) {
+        Entry entry = entry(uuid);
+        entry.dataSynced = true;
+        advance(entry);
+        return checkCompleted();
+    }
+
+    /**
+     * Marks the load finished even though some wallets are still syncing.
+     * @return false if the load had already finished
+     */
+    synchronized boolean complete() {
+        if (mCompleted) {
+            return false;
+        }
+        mCompleted = true;
+        return true;
+    }
+
+    synchronized boolean isAddressesChecked(String uuid) {
+        Entry entry = mWallets.get(uuid);
+        return entry != null && entry.addressesChecked;
+    }
+
+    synchronized State state(String uuid) {
+        Entry entry = mWallets.get(uuid);
+        return entry != null ? entry.state : null;
+    }
+
+    synchronized int count(State state) {
+        return mCounts[state.ordinal()];
+    }
+
+    synchronized int size() {
+        return mWallets.size();
+    }
+
+    synchronized boolean isCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * Projects the time left from the average time the synced wallets took.
+     * @return the estimate in milliseconds, or -1 before any wallet is synced
+     */
+    synchronized long eta() {
+        int synced = mCounts[State.SYNCED.ordinal()];
+        int remaining = mWallets.size() - synced;
+        if (remaining == 0) {
+            return 0;
+        }
+        if (synced == 0) {
+            return -1;
+        }
+        long elapsed = System.currentTimeMillis() - mStartedAt;
+        return elapsed * remaining / synced;
+    }
+
+    private Entry entry(String uuid) {
+        Entry entry = mWallets.get(uuid);
+        if (entry == null) {
+            entry = new Entry();
+            mWallets.put(uuid, entry);
+            mCounts[entry.state.ordinal()]++;
+            // A new wallet reopens the load until it catches up too
+            mCompleted = false;
+        }
+        return entry;
+    }
+
+    private void advance(Entry entry) {
+        if (entry.addressesChecked && entry.dataSynced) {
+            move(entry, State.SYNCED);
+        } else if (entry.addressesChecked
+                && entry.state.ordinal() < State.ADDRESSES_CHECKED.ordinal()) {
+            move(entry, State.ADDRESSES_CHECKED);
+        }
+    }
+
+    private void move(Entry entry, State state) {
+        mCounts[entry.state.ordinal()]--;
+        entry.state = state;
+        mCounts[state.ordinal()]++;
+    }
+
+    private boolean checkCompleted() {
+        if (mCompleted || mWallets.isEmpty()
+                || mCounts[State.SYNCED.ordinal()] != mWallets.size()) {
+            return false;
+        }
+        mCompleted = true;
+        return true;
+    }
+}
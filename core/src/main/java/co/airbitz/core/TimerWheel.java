@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Used internally only. A hashed timer wheel shared by all of the engine's
+ * timers. Scheduling, rescheduling and cancelling are O(1), and the wheel
+ * thread sleeps until the next deadline rather than ticking, so an idle
+ * engine does not wake the device. Timers scheduled with a slack are rounded
+ * up to a multiple of it, which lets periodic refreshes fire together.
+ */
+class TimerWheel {
+    static final long TICK_MS = 100;
+    static final int WHEEL_SIZE = 512;
+
+    /**
+     * A scheduled task. Tasks run on the wheel thread and should only hand
+     * work off to an executor.
+     */
+    class Timeout {
+        final String key;
+        final Runnable task;
+        final long deadline;
+        Timeout prev;
+        Timeout next;
+        int bucket = -1;
+
+        Timeout(String key, Runnable task, long deadline) {
+            this.key = key;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            synchronized (TimerWheel.this) {
+                remove(this);
+            }
+        }
+    }
+
+    private final String mName;
+    private final long mStartNanos = System.nanoTime();
+    private final Timeout[] mBuckets = new Timeout[WHEEL_SIZE];
+    private final Map<String, Timeout> mKeyed = new HashMap<String, Timeout>();
+    private int mCount = 0;
+    private long mProcessedTick = 0;
+    private Thread mThread;
+
+    TimerWheel(String name) {
+        mName = name;
+    }
+
+    /**
+     * Schedule a task, replacing any pending task with the same key.
+     */
+    synchronized Timeout schedule(String key, long delayMs, Runnable task) {
+        return schedule(key, delayMs, 0, task);
+    }
+
+    /**
+     * Schedule a task, replacing any pending task with the same key. The
+     * deadline is rounded up to a multiple of slackMs so that timers with
+     * similar deadlines share a wakeup.
+     */
+    synchronized Timeout schedule(String key, long delayMs, long slackMs, Runnable task) {
+        long deadline = now() + toTicks(delayMs);
+        long slack = toTicks(slackMs);
+        if (slack > 1) {
+            deadline = ((deadline + slack - 1) / slack) * slack;
+        }
+        // Never schedule into a tick the wheel has already passed
+        deadline = Math.max(deadline, mProcessedTick + 1);
+        if (key != null) {
+            Timeout existing = mKeyed.get(key);
+            if (existing != null) {
+                remove(existing);
+            }
+        }
+        Timeout timeout = new Timeout(key, task, deadline);
+        add(timeout);
+        ensureThread();
+        notifyAll();
+        return timeout;
+    }
+
+    synchronized boolean isPending(String key) {
+        return mKeyed.containsKey(key);
+    }
+
+    synchronized void cancel(String key) {
+        Timeout timeout = mKeyed.get(key);
+        if (timeout != null) {
+            remove(timeout);
+        }
+    }
+
+    synchronized void cancelAll() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            mBuckets[i] = null;
+        }
+        mKeyed.clear();
+        mCount = 0;
+    }
+
+    /**
+     * Cancel every timer and let the wheel thread exit. The thread is
+     * started again by the next schedule.
+     */
+    synchronized void shutdown() {
+        cancelAll();
+        mThread = null;
+        notifyAll();
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos) / TICK_MS;
+    }
+
+    private static long toTicks(long ms) {
+        return (ms + TICK_MS - 1) / TICK_MS;
+    }
+
+    private void add(Timeout timeout) {
+        int bucket = (int) (timeout.deadline % WHEEL_SIZE);
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = mBuckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        mBuckets[bucket] = timeout;
+        if (timeout.key != null) {
+            mKeyed.put(timeout.key, timeout);
+        }
+        mCount++;
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            mBuckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        if (timeout.key != null && mKeyed.get(timeout.key) == timeout) {
+            mKeyed.remove(timeout.key);
+        }
+        timeout.bucket = -1;
+        timeout.prev = null;
+        timeout.next = null;
+        mCount--;
+    }
+
+    private void ensureThread() {
+        if (mThread != null) {
+            return;
+        }
+        mProcessedTick = Math.max(mProcessedTick, now() - 1);
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                loop(Thread.currentThread());
+            }
+        }, mName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /*
+     * The tick at which the next timer expires, or -1 if there are none.
+     * Buckets are checked one rotation ahead before falling back to a scan of
+     * every timer, which only happens for timers more than a rotation out.
+     */
+    private long nextDeadline() {
+        if (mCount == 0) {
+            return -1;
+        }
+        for (long tick = mProcessedTick + 1; tick <= mProcessedTick + WHEEL_SIZE; tick++) {
+            for (Timeout t = mBuckets[(int) (tick % WHEEL_SIZE)]; t != null; t = t.next) {
+                if (t.deadline <= tick) {
+                    return tick;
+                }
+            }
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            for (Timeout t = mBuckets[i]; t != null; t = t.next) {
+                min = Math.min(min, t.deadline);
+            }
+        }
+        return min;
+    }
+
+    private void loop(Thread self) {
+        while (true) {
+            List<Timeout> expired = new ArrayList<Timeout>();
+            synchronized (this) {
+                if (mThread != self) {
+                    return;
+                }
+                long now = now();
+                long next = nextDeadline();
+                if (next < 0 || next > now) {
+                    try {
+                        if (next < 0) {
+                            wait();
+                        } else {
+                            wait((next - now) * TICK_MS);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                // Only visit the buckets between the last processed tick and
+                // now; at most one rotation is needed to cover every bucket
+                long from = Math.max(mProcessedTick + 1, now - WHEEL_SIZE + 1);
+                for (long tick = from; tick <= now; tick++) {
+                    Timeout t = mBuckets[(int) (tick % WHEEL_SIZE)];
+                    while (t != null) {
+                        Timeout following = t.next;
+                        if (t.deadline <= now) {
+                            remove(t);
+                            expired.add(t);
+                        }
+                        t = following;
+                    }
+                }
+                mProcessedTick = now;
+            }
+            for (Timeout t : expired) {
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    AirbitzCore.loge(mName + " timer failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
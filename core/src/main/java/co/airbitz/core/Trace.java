@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+/**
+ * Used internally only. Hands timed trace events for core calls, syncs and
+ * watcher events to the registered {@link AirbitzCore.TraceListener}. With
+ * no listener, {@link #begin begin} returns 0 and {@link #end end} returns
+ * immediately, so call sites cost a volatile read.
+ */
+class Trace {
+    static final String CATEGORY = "co.airbitz";
+
+    private static volatile AirbitzCore.TraceListener sListener;
+
+    static void listener(AirbitzCore.TraceListener listener) {
+        sListener = listener;
+    }
+
+    static long begin() {
+        return sListener != null ? System.nanoTime() : 0;
+    }
+
+    static void end(String name, String walletId, long start, long count) {
+        AirbitzCore.TraceListener listener = sListener;
+        if (start == 0 || listener == null) {
+            return;
+        }
+        AirbitzCore.TraceEvent event = new AirbitzCore.TraceEvent();
+        event.category = CATEGORY;
+        event.name = name;
+        event.walletId = walletId;
+        event.durationMicros = Instrumentation.micros(System.nanoTime() - start);
+        event.count = count;
+        event.thread = Thread.currentThread().getName();
+        event.timestamp = System.currentTimeMillis();
+        try {
+            listener.onEvent(event);
+        } catch (RuntimeException e) {
+            AirbitzCore.logw("Trace listener failed: " + e.getMessage());
+        }
+    }
+}
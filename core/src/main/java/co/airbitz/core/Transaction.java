@@ -144,6 +144,8 @@ public class Transaction {
         if (error.getCode() != tABC_CC.ABC_CC_Ok) {
             throw new AirbitzException(error.getCode(), error);
         }
+        mAccount.history(mWallet.id()).reindex(this);
+        mAccount.engine().walletEdited(mWallet.id());
         mAccount.sendReloadWallets();
     }
 
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * TransactionCursor marks a position in a wallet's history for reading it
+ * a page at a time with {@link Wallet#page Wallet.page}. A cursor is
+ * anchored on a transaction or a time rather than an offset, so paging
+ * through older transactions is not thrown off by new ones arriving at the
+ * head of the history.
+ */
+public class TransactionCursor {
+    public enum Direction {
+        /** Read transactions older than the anchor */
+        OLDER,
+        /** Read transactions newer than the anchor */
+        NEWER
+    }
+
+    /**
+     * A page of transactions, newest first, with the cursors for the pages
+     * on either side.
+     */
+    public static class Page {
+        public List<Transaction> transactions;
+        /** The cursor for the next older page, or null if there is none */
+        public TransactionCursor older;
+        /** The cursor for the next newer page, or null if there is none */
+        public TransactionCursor newer;
+    }
+
+    final Direction mDirection;
+    final int mPageSize;
+    final long mTime;
+    final boolean mHasTime;
+    final String mId;
+    final boolean mInclusive;
+
+    TransactionCursor(Direction direction, int pageSize,
+            long time, boolean hasTime, String id, boolean inclusive) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        mDirection = direction;
+        mPageSize = pageSize;
+        mTime = time;
+        mHasTime = hasTime;
+        mId = id;
+        mInclusive = inclusive;
+    }
+
+    /**
+     * A cursor for the newest page of the history.
+     */
+    public static TransactionCursor newest(int pageSize) {
+        return new TransactionCursor(Direction.OLDER, pageSize, Long.MAX_VALUE, true, null, true);
+    }
+
+    /**
+     * A cursor anchored on a time. Reading OLDER includes transactions at
+     * the time itself.
+     */
+    public static TransactionCursor at(Date date, Direction direction, int pageSize) {
+        return new TransactionCursor(direction, pageSize, date.getTime(), true, null, true);
+    }
+
+    /**
+     * A cursor anchored on a transaction, which is not included in the
+     * page.
+     */
+    public static TransactionCursor at(String txid, Direction direction, int pageSize) {
+        return new TransactionCursor(direction, pageSize, 0, false, txid, false);
+    }
+
+    static TransactionCursor after(Transaction tx, Direction direction, int pageSize,
+            boolean inclusive) {
+        return new TransactionCursor(direction, pageSize,
+            tx.date().getTime(), true, tx.id(), inclusive);
+    }
+
+    /**
+     * @return the number of transactions per page
+     */
+    public int pageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * @return the direction the cursor reads in
+     */
+    public Direction direction() {
+        return mDirection;
+    }
+}
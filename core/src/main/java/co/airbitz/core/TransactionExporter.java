@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Used internally only. Streams transactions, oldest first, to a channel in
+ * the format, range and categories given by the {@link ExportOptions}. Each
+ * wallet is prepared as its own section, which may be done in parallel, and
+ * the sections are merged by date as they are written.
+ */
+class TransactionExporter {
+    private static final int PROGRESS_INTERVAL = 100;
+
+    static final Comparator<Transaction> OLDEST_FIRST = new Comparator<Transaction>() {
+        public int compare(Transaction a, Transaction b) {
+            int cmp = a.date().compareTo(b.date());
+            return cmp != 0 ? cmp : a.id().compareTo(b.id());
+        }
+    };
+
+    /*
+     * A transaction ready to be written, with its converted fiat amount when
+     * the options ask for one.
+     */
+    static class Row {
+        final Wallet wallet;
+        final Transaction tx;
+        final double fiat;
+
+        Row(Wallet wallet, Transaction tx, double fiat) {
+            this.wallet = wallet;
+            this.tx = tx;
+            this.fiat = fiat;
+        }
+    }
+
+    private final ExportOptions mOptions;
+
+    TransactionExporter(ExportOptions options) {
+        mOptions = options != null ? options : new ExportOptions();
+    }
+
+    /**
+     * Filter one wallet's transactions and convert them into rows, oldest
+     * first, in a single pass. Safe to call for several wallets at once.
+     * The start of the range, or a checkpoint's settled point if later, and
+     * the end are pushed down to the wallet, which reads them straight off
+     * its date index, or from the core when the history is not loaded.
+     */
+    List<Row> prepare(Wallet wallet) {
+        long start = mOptions.mStart;
+        if (mOptions.mCheckpoint != null) {
+            start = Math.max(start, mOptions.mCheckpoint.settled(wallet));
+        }
+        List<Transaction> transactions = wallet.oldestFirst(start * 1000, mOptions.mEnd * 1000);
+
+        ExchangeCache exchange = null;
+        if (mOptions.mFiatCurrency != null) {
+            exchange = AirbitzCore.getApi().exchangeCache();
+        }
+        List<Row> rows = new ArrayList<Row>();
+        for (Transaction tx : transactions) {
+            if (!mOptions.matches(tx)
+                    || (mOptions.mCheckpoint != null && !mOptions.mCheckpoint.isChanged(wallet, tx))) {
+                continue;
+            }
+            double fiat = exchange != null
+                ? exchange.satoshiToCurrency(tx.amount(), mOptions.mFiatCurrency)
+                : 0;
+            rows.add(new Row(wallet, tx, fiat));
+        }
+        return rows;
+    }
+
+    /**
+     * Export a single wallet.
+     * @return the number of transactions written
+     */
+    int export(Wallet wallet, WritableByteChannel channel) throws IOException {
+        List<List<Row>> sections = new ArrayList<List<Row>>();
+        sections.add(prepare(wallet));
+        return write(Collections.singletonList(wallet), sections, null, channel);
+    }
+
+    /**
+     * Write prepared sections merged oldest first.
+     * @param wallets the wallets being exported, in the same order as the
+     *      sections
+     * @param ledger the account id when rows from several wallets share the
+     *      output, or null for a single wallet
+     * @return the number of transactions written
+     * @throws IllegalArgumentException for a QBO export of wallets in
+     *      different currencies without a fiat currency to convert to
+     */
+    int write(List<Wallet> wallets, List<List<Row>> sections, String ledger,
+            WritableByteChannel channel) throws IOException {
+        boolean qbo = mOptions.mFormat == ExportOptions.Format.QBO;
+        if (qbo && mOptions.mFiatCurrency == null) {
+            checkCurrencies(sections);
+        }
+        int total = 0;
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>();
+        for (List<Row> section : sections) {
+            if (section != null && !section.isEmpty()) {
+                total += section.size();
+                queue.add(new Cursor(section));
+            }
+        }
+
+        GZIPOutputStream gzip = null;
+        if (mOptions.mGzip) {
+            gzip = new GZIPOutputStream(new NonClosingStream(Channels.newOutputStream(channel)),
+                    mOptions.mChunkSize);
+            channel = Channels.newChannel(gzip);
+        }
+        ChunkedWriter out = new ChunkedWriter(channel, mOptions.mChunkSize);
+        ExportFormat format = ExportFormat.create(mOptions, ledger);
+        if (qbo) {
+            Date asOf = mOptions.mEnd != 0 ? new Date(mOptions.mEnd * 1000 - 1) : new Date();
+            long balance = 0;
+            for (Wallet wallet : wallets) {
+                balance += wallet.balanceAt(asOf);
+            }
+            format.balance(balance, asOf);
+        }
+        format.header(out);
+        int written = 0;
+        progress(written, total);
+        while (!queue.isEmpty()) {
+            Cursor cursor = queue.poll();
+            format.row(out, cursor.current());
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+            if (++written % PROGRESS_INTERVAL == 0) {
+                progress(written, total);
+            }
+        }
+        format.footer(out);
+        out.close();
+        if (gzip != null) {
+            gzip.finish();
+            gzip.flush();
+        }
+        if (written % PROGRESS_INTERVAL != 0) {
+            progress(written, total);
+        }
+        if (mOptions.mCheckpoint != null) {
+            for (List<Row> section : sections) {
+                if (section != null) {
+                    mOptions.mCheckpoint.advance(section);
+                }
+            }
+        }
+        return written;
+    }
+
+    /*
+     * A QBO statement has a single currency, and each row's recorded fiat
+     * amount is in its own wallet's currency.
+     */
+    private static void checkCurrencies(List<List<Row>> sections) {
+        String currency = null;
+        for (List<Row> section : sections) {
+            if (section == null || section.isEmpty()) {
+                continue;
+            }
+            String code = section.get(0).wallet.currency().code;
+            if (currency == null) {
+                currency = code;
+            } else if (!currency.equals(code)) {
+                throw new IllegalArgumentException(
+                    "Wallets use different currencies, set a fiatCurrency to export QBO");
+            }
+        }
+    }
+
+    private void progress(int written, int total) {
+        if (mOptions.mProgress != null) {
+            mOptions.mProgress.onProgress(written, total);
+        }
+    }
+
+    /*
+     * Walks one oldest first section during the merge.
+     */
+    static class Cursor implements Comparable<Cursor> {
+        private final List<Row> mRows;
+        private int mPos = 0;
+
+        Cursor(List<Row> rows) {
+            mRows = rows;
+        }
+
+        Row current() {
+            return mRows.get(mPos);
+        }
+
+        boolean advance() {
+            return ++mPos < mRows.size();
+        }
+
+        public int compareTo(Cursor other) {
+            return OLDEST_FIRST.compare(current().tx, other.current().tx);
+        }
+    }
+
+    /*
+     * Finishing the gzip stream must not close the caller's output.
+     */
+    static class NonClosingStream extends OutputStream {
+        private final OutputStream mOut;
+
+        NonClosingStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.flush();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Used internally only. An inverted index over the payee name, notes,
+ * category and addresses of a wallet's transactions. Transactions are
+ * numbered newest first, and every term maps to the set of transactions
+ * that contain it, so walking a result set in order gives date order.
+ * Every query term matches as a prefix and all terms must match.
+ * Transactions that arrive after the index was built are numbered after
+ * the rest and kept in their own date ordered list, which searches merge
+ * in.
+ */
+class TransactionIndex {
+    private static final Comparator<Transaction> NEWEST_FIRST = new Comparator<Transaction>() {
+        public int compare(Transaction a, Transaction b) {
+            int cmp = b.date().compareTo(a.date());
+            return cmp != 0 ? cmp : a.id().compareTo(b.id());
+        }
+    };
+
+    private Transaction[] mDocs;
+    private final Map<String, Integer> mDocIds = new HashMap<String, Integer>();
+    private String[][] mDocTerms;
+    private final TreeMap<String, BitSet> mTerms = new TreeMap<String, BitSet>();
+    private final int mSorted;
+    private int mCount;
+    private final List<Integer> mAdded = new ArrayList<Integer>();
+
+    TransactionIndex(List<Transaction> transactions) {
+        mDocs = transactions.toArray(new Transaction[transactions.size()]);
+        Arrays.sort(mDocs, NEWEST_FIRST);
+        mDocTerms = new String[mDocs.length][];
+        mSorted = mDocs.length;
+        mCount = mDocs.length;
+        for (int i = 0; i < mDocs.length; i++) {
+            mDocIds.put(mDocs[i].id(), i);
+            add(i);
+        }
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Index a transaction that is new to the history, or re-index one that
+     * is already there.
+     */
+    synchronized void put(Transaction transaction) {
+        if (mDocIds.containsKey(transaction.id())) {
+            update(transaction);
+            return;
+        }
+        if (mCount == mDocs.length) {
+            int capacity = Math.max(16, mDocs.length * 2);
+            mDocs = Arrays.copyOf(mDocs, capacity);
+            mDocTerms = Arrays.copyOf(mDocTerms, capacity);
+        }
+        int doc = mCount++;
+        mDocs[doc] = transaction;
+        mDocIds.put(transaction.id(), doc);
+        add(doc);
+        int lo = 0;
+        int hi = mAdded.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (NEWEST_FIRST.compare(mDocs[mAdded.get(mid)], transaction) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        mAdded.add(lo, doc);
+    }
+
+    /**
+     * Re-index a transaction after its meta data changed.
+     */
+    synchronized void update(Transaction transaction) {
+        Integer doc = mDocIds.get(transaction.id());
+        if (doc == null) {
+            return;
+        }
+        for (String term : mDocTerms[doc]) {
+            BitSet docs = mTerms.get(term);
+            docs.clear(doc);
+            if (docs.isEmpty()) {
+                mTerms.remove(term);
+            }
+        }
+        mDocs[doc] = transaction;
+        add(doc);
+    }
+
+    /**
+     * @param query the search text, split into terms on anything that is
+     *      not a letter or a digit
+     * @param limit the most results to return, or 0 for all of them
+     * @param offset the number of matches to skip
+     * @return the matching transactions, newest first
+     */
+    synchronized List<Transaction> search(String query, int limit, int offset) {
+        List<Transaction> results = new ArrayList<Transaction>();
+        Set<String> terms = tokenize(query);
+        BitSet matches = null;
+        if (terms.isEmpty()) {
+            matches = new BitSet(mCount);
+            matches.set(0, mCount);
+        }
+        for (String term : terms) {
+            BitSet docs = prefix(term);
+            if (matches == null) {
+                matches = docs;
+            } else {
+                matches.and(docs);
+            }
+            if (matches.isEmpty()) {
+                return results;
+            }
+        }
+        int skipped = 0;
+        int i = next(matches, 0);
+        int a = nextAdded(matches, 0);
+        while (i >= 0 || a < mAdded.size()) {
+            int doc;
+            if (a >= mAdded.size()
+                    || (i >= 0 && NEWEST_FIRST.compare(mDocs[i], mDocs[mAdded.get(a)]) < 0)) {
+                doc = i;
+                i = next(matches, i + 1);
+            } else {
+                doc = mAdded.get(a);
+                a = nextAdded(matches, a + 1);
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            results.add(mDocs[doc]);
+            if (limit > 0 && results.size() >= limit) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /*
+     * The next match among the transactions the index was built with, or
+     * -1.
+     */
+    private int next(BitSet matches, int from) {
+        int i = matches.nextSetBit(from);
+        return i < mSorted ? i : -1;
+    }
+
+    private int nextAdded(BitSet matches, int from) {
+        int a = from;
+        while (a < mAdded.size() && !matches.get(mAdded.get(a))) {
+            a++;
+        }
+        return a;
+    }
+
+    private BitSet prefix(String term) {
+        BitSet docs = new BitSet(mCount);
+        SortedMap<String, BitSet> range = mTerms.subMap(term, term + Character.MAX_VALUE);
+        for (BitSet postings : range.values()) {
+            docs.or(postings);
+        }
+        return docs;
+    }
+
+    private void add(int doc) {
+        Transaction tx = mDocs[doc];
+        Set<String> terms = new LinkedHashSet<String>();
+        MetadataSet meta = tx.meta();
+        if (meta != null) {
+            tokenize(meta.name(), terms);
+            tokenize(meta.notes(), terms);
+            tokenize(meta.category(), terms);
+        }
+        addAddresses(tx.outputs(), terms);
+        addAddresses(tx.inputs(), terms);
+        mDocTerms[doc] = terms.toArray(new String[terms.size()]);
+        for (String term : mDocTerms[doc]) {
+            BitSet docs = mTerms.get(term);
+            if (docs == null) {
+                docs = new BitSet(mDocs.length);
+                mTerms.put(term, docs);
+            }
+            docs.set(doc);
+        }
+    }
+
+    private static void addAddresses(List<TxOutput> outputs, Set<String> terms) {
+        if (outputs == null) {
+            return;
+        }
+        for (TxOutput output : outputs) {
+            tokenize(output.address(), terms);
+        }
+    }
+
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<String>();
+        tokenize(text, terms);
+        return terms;
+    }
+
+    private static void tokenize(String text, Set<String> terms) {
+        if (text == null) {
+            return;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase(Locale.US));
+                start = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A filter for {@link Wallet#query Wallet.query}. Every condition that is
+ * set has to match. Setters return this so they can be chained.
+ */
+public class TransactionQuery {
+    public enum Direction {
+        ANY,
+        SENT,
+        RECEIVED
+    }
+
+    Date mStart;
+    Date mEnd;
+    long mMinAmount = Long.MIN_VALUE;
+    long mMaxAmount = Long.MAX_VALUE;
+    String mCategory;
+    Direction mDirection = Direction.ANY;
+    Boolean mConfirmed;
+    int mLimit = 0;
+
+    /**
+     * Only match transactions in a time range.
+     * @param start the first date to include, or null for no limit
+     * @param end the date after the last one to include, or null for no limit
+     */
+    public TransactionQuery timeRange(Date start, Date end) {
+        mStart = start;
+        mEnd = end;
+        return this;
+    }
+
+    /**
+     * Only match transactions whose amount is in a range, inclusive. Sends
+     * have negative amounts.
+     * @param min the smallest amount in satoshis
+     * @param max the largest amount in satoshis
+     */
+    public TransactionQuery amountRange(long min, long max) {
+        mMinAmount = min;
+        mMaxAmount = max;
+        return this;
+    }
+
+    /**
+     * Only match transactions whose category starts with a prefix, such as
+     * "Expense:" or "Income:Salary". Matching ignores case.
+     */
+    public TransactionQuery category(String prefix) {
+        mCategory = prefix;
+        return this;
+    }
+
+    /**
+     * Only match sends or receives.
+     */
+    public TransactionQuery direction(Direction direction) {
+        mDirection = direction != null ? direction : Direction.ANY;
+        return this;
+    }
+
+    /**
+     * Only match transactions that are confirmed, or only those that are
+     * not. Both match unless this is called.
+     */
+    public TransactionQuery confirmed(boolean confirmed) {
+        mConfirmed = confirmed;
+        return this;
+    }
+
+    /**
+     * Return at most this many transactions, newest first. 0 returns all of
+     * them.
+     */
+    public TransactionQuery limit(int limit) {
+        mLimit = limit;
+        return this;
+    }
+
+    boolean hasTimeRange() {
+        return mStart != null || mEnd != null;
+    }
+
+    long startMillis() {
+        return mStart != null ? mStart.getTime() : Long.MIN_VALUE;
+    }
+
+    long endMillis() {
+        return mEnd != null ? mEnd.getTime() : Long.MAX_VALUE;
+    }
+
+    /*
+     * The core takes whole seconds, so round outward and let matches()
+     * trim the edges.
+     */
+    long startSeconds() {
+        return mStart != null ? Math.max(1, mStart.getTime() / 1000) : 0;
+    }
+
+    long endSeconds() {
+        return mEnd != null ? (mEnd.getTime() + 999) / 1000 : 0;
+    }
+
+    boolean isFull(int count) {
+        return mLimit > 0 && count >= mLimit;
+    }
+
+    boolean matches(Transaction tx) {
+        long time = tx.date().getTime();
+        if (time < startMillis() || time >= endMillis()) {
+            return false;
+        }
+        long amount = tx.amount();
+        if (amount < mMinAmount || amount > mMaxAmount) {
+            return false;
+        }
+        if (mDirection == Direction.SENT && amount >= 0) {
+            return false;
+        }
+        if (mDirection == Direction.RECEIVED && amount < 0) {
+            return false;
+        }
+        if (mCategory != null) {
+            String category = tx.meta().category();
+            if (category == null
+                    || !category.regionMatches(true, 0, mCategory, 0, mCategory.length())) {
+                return false;
+            }
+        }
+        if (mConfirmed != null && mConfirmed.booleanValue() != (tx.height() > 0)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Filter a newest first list.
+     */
+    List<Transaction> apply(List<Transaction> transactions) {
+        List<Transaction> results = new ArrayList<Transaction>();
+        for (Transaction tx : transactions) {
+            if (isFull(results.size())) {
+                break;
+            }
+            if (matches(tx)) {
+                results.add(tx);
+            }
+        }
+        return results;
+    }
+}
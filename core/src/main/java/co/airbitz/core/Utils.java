@@ -75,31 +75,15 @@ public class Utils {
         if (settings == null) {
             return "";
         }
-        BitcoinDenomination bitcoinDenomination =
-            settings.bitcoinDenomination();
-        if (bitcoinDenomination == null) {
-            AirbitzCore.logw("Bad bitcoin denomination from core settings");
-            return "";
-        }
-        return bitcoinDenomination.btcSymbol();
+        return settings.btcSymbol();
     }
 
     static int userDecimalPlaces(Account account) {
-        int decimalPlaces = 8; // for BitcoinDenomination.BTC
         Settings settings = account.settings();
         if (settings == null) {
             return 2;
         }
-        BitcoinDenomination bitcoinDenomination =
-            settings.bitcoinDenomination();
-        if (bitcoinDenomination != null) {
-            int label = bitcoinDenomination.type();
-            if (label == BitcoinDenomination.UBTC)
-                decimalPlaces = 2;
-            else if (label == BitcoinDenomination.MBTC)
-                decimalPlaces = 5;
-        }
-        return decimalPlaces;
+        return settings.decimalPlaces();
     }
 
     static int userDecimalPlaces(int multiplier) {
@@ -31,8 +31,15 @@
 
 package co.airbitz.core;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.Callable;
 import java.util.List;
 
 import co.airbitz.internal.Jni;
@@ -64,13 +71,11 @@ public class Wallet {
     long mBalanceSatoshi = 0;
     boolean mArchived = false;
     boolean mSynced = false;
-    List<Transaction> mTransactions;
     public boolean bAddressesChecked = false;
 
     Wallet(Account account, String uuid) {
         this.mAccount = account;
         this.mCurrencyNum = -1;
-        this.mTransactions = new ArrayList<Transaction>();
         this.mId = uuid;
         setup();
     }
@@ -145,6 +150,7 @@ public class Wallet {
         tABC_Error error = new tABC_Error();
         tABC_CC result = core.ABC_WalletRemove(mAccount.username(), id(), error);
         if (result == tABC_CC.ABC_CC_Ok) {
+            mAccount.invalidateWalletIds();
             mAccount.engine().stopWatcher(id());
             mAccount.reloadWallets();
             return true;
@@ -165,6 +171,7 @@ public class Wallet {
                 id(), newName, error);
         if (result == tABC_CC.ABC_CC_Ok) {
             mName = newName;
+            mAccount.engine().walletEdited(id());
             mAccount.reloadWallets();
         }
         return result == tABC_CC.ABC_CC_Ok;
@@ -252,7 +259,9 @@ public class Wallet {
      * @param start timestamp of start export
      * @param end timestamp of end export
      * @return csv file contents
+     * @deprecated builds the whole export in memory, use {@link #export(OutputStream, ExportOptions) export}
      */
+    @Deprecated
     public String csvExport(long start, long end) {
         tABC_Error pError = new tABC_Error();
 
@@ -286,7 +295,9 @@ public class Wallet {
      * @param start timestamp of start export
      * @param end timestamp of end export
      * @return csv file contents
+     * @deprecated builds the whole export in memory, use {@link #export(OutputStream, ExportOptions) export}
      */
+    @Deprecated
     public String qboExport(long start, long end) {
         tABC_Error pError = new tABC_Error();
 
@@ -315,6 +326,29 @@ public class Wallet {
         }
     }
 
+    /**
+     * Stream the wallet's transactions, oldest first, to an output stream.
+     * Rows are written in chunks so memory use does not grow with the size
+     * of the history. The stream is not closed.
+     * @param out the stream to write to
+     * @param options the format, time range and compression of the export
+     * @return the number of transactions written
+     */
+    public int export(OutputStream out, ExportOptions options) throws IOException {
+        return export(Channels.newChannel(out), options);
+    }
+
+    /**
+     * Stream the wallet's transactions, oldest first, to a channel. The
+     * channel is not closed.
+     * @param channel the channel to write to
+     * @param options the format, time range and compression of the export
+     * @return the number of transactions written
+     */
+    public int export(WritableByteChannel channel, ExportOptions options) throws IOException {
+        return new TransactionExporter(options).export(this, channel);
+    }
+
     /**
      * Create a receive request from the current wallet.
      * @return the newly instantiated {@link ReceiveAddress}
@@ -345,14 +379,23 @@ public class Wallet {
      * @param txid the id of the transaction
      * @return the requested transaction or null if it cannot be found
      */
-    public Transaction transaction(String txid) {
-        if (mTransactions != null) {
-            for (Transaction t : mTransactions) {
+    public Transaction transaction(final String txid) {
+        WalletHistory history = history();
+        if (history.isLoaded()) {
+            for (Transaction t : history.get(this)) {
                 if (t.id().equals(txid)) {
                     return t;
                 }
             }
         }
+        return mAccount.mTransactionFlight.run(mId + ":" + txid, new Callable<Transaction>() {
+            public Transaction call() {
+                return fetchTransaction(txid);
+            }
+        });
+    }
+
+    Transaction fetchTransaction(String txid) {
         tABC_Error error = new tABC_Error();
         Transaction transaction = null;
 
@@ -371,7 +414,27 @@ public class Wallet {
         return transaction;
     }
 
+    private WalletHistory history() {
+        return mAccount.history(mId);
+    }
+
     void loadTransactions() {
+        WalletHistory history = history();
+        int version = history.version();
+        List<Transaction> listTransactions = fetchTransactions(0, 0);
+        if (listTransactions != null) {
+            history.update(listTransactions, version);
+        }
+    }
+
+    /**
+     * Fetch transactions from the core, newest first, without touching the
+     * cached history.
+     * @param start timestamp in seconds of the first transaction, 0 for no limit
+     * @param end timestamp in seconds of the last transaction, 0 for no limit
+     * @return the transactions, or null if the core failed
+     */
+    List<Transaction> fetchTransactions(long start, long end) {
         List<Transaction> listTransactions = new ArrayList<Transaction>();
         tABC_Error error = new tABC_Error();
 
@@ -382,14 +445,17 @@ public class Wallet {
         SWIGTYPE_p_p_p_sABC_TxInfo paTxInfo = core.longp_to_pppTxInfo(lp);
 
         SWIGTYPE_p_int64_t startTime = core.new_int64_tp();
-        Jni.set64BitLongAtPtr(Jni.getCPtr(startTime), 0); // 0 means all transactions
+        Jni.set64BitLongAtPtr(Jni.getCPtr(startTime), start); // 0 means all transactions
 
         SWIGTYPE_p_int64_t endTime = core.new_int64_tp();
-        Jni.set64BitLongAtPtr(Jni.getCPtr(endTime), 0); // 0 means all transactions
+        Jni.set64BitLongAtPtr(Jni.getCPtr(endTime), end); // 0 means all transactions
 
+        long callStart = Instrumentation.start();
+        long trace = Trace.begin();
         tABC_CC result = core.ABC_GetTransactions(
                 mAccount.username(), mAccount.password(),
                 id(), startTime, endTime, paTxInfo, puCount, error);
+        Instrumentation.call("core.ABC_GetTransactions", callStart);
 
         if (result == tABC_CC.ABC_CC_Ok) {
             int ptrToInfo = core.longp_value(lp);
@@ -405,18 +471,38 @@ public class Wallet {
             }
 
             core.ABC_FreeTransactions(new Jni.ppTxInfo(ptrToInfo), count);
-            mTransactions = listTransactions;
+            Instrumentation.size("size.transactions", count);
+            Trace.end("loadTransactions", id(), trace, count);
+            return listTransactions;
         } else {
             AirbitzCore.loge("Error: CoreBridge.loadAllTransactions: "+ error.getSzDescription());
+            return null;
         }
     }
 
     /**
-     * Fetch all transactions for this wallet
+     * Fetch all transactions for this wallet. Wallet reloads only refresh
+     * the wallet summary, so the history is loaded here on first use and
+     * after the wallet changes, which can take a while for large wallets.
+     * Use {@link Account#focusWallet focusWallet} to have it loaded in the
+     * background ahead of time.
      * @return a list of {@link Transaction} objects
      */
     public List<Transaction> transactions() {
-        return mTransactions;
+        List<Transaction> transactions = history().get(this);
+        if (transactions == null) {
+            return new ArrayList<Transaction>();
+        }
+        return transactions;
+    }
+
+    /**
+     * Determines if the transaction history is loaded and up to date, so
+     * that {@link #transactions transactions} returns without loading it.
+     * @return true if the history is loaded
+     */
+    public boolean isHistoryLoaded() {
+        return history().isLoaded();
     }
 
     /**
@@ -424,35 +510,263 @@ public class Wallet {
      * @return a list of {@link Transaction} objects matching the query.
      */
     public List<Transaction> transactionsSearch(String searchText) {
-        List<Transaction> listTransactions = new ArrayList<Transaction>();
-        tABC_Error error = new tABC_Error();
+        return transactionsSearch(searchText, 0, 0);
+    }
 
-        SWIGTYPE_p_int pCount = core.new_intp();
-        SWIGTYPE_p_unsigned_int puCount = core.int_to_uint(pCount);
+    /**
+     * Search the transactions for this wallet by payee name, notes, category
+     * and address. Each word in the search text matches the start of a word
+     * in the transaction, and all of them have to match. The search runs
+     * against an index kept in memory, so it is cheap enough to call on
+     * every keystroke.
+     * @param searchText the words to search for
+     * @param limit the most results to return, or 0 for all of them
+     * @param offset the number of matches to skip, for paging
+     * @return a list of {@link Transaction} objects matching the query,
+     *      newest first
+     */
+    public List<Transaction> transactionsSearch(String searchText, int limit, int offset) {
+        TransactionIndex index = history().index(this);
+        if (index == null) {
+            return new ArrayList<Transaction>();
+        }
+        return index.search(searchText, limit, offset);
+    }
 
-        SWIGTYPE_p_long lp = core.new_longp();
-        SWIGTYPE_p_p_p_sABC_TxInfo paTxInfo = core.longp_to_pppTxInfo(lp);
+    /**
+     * Find the transactions that match a query, newest first. When the
+     * history is loaded the query runs against an index sorted by date.
+     * Otherwise the time range is passed to the core so that only
+     * transactions inside it are read, and the history is left unloaded.
+     * @param query the conditions to match
+     * @return the matching {@link Transaction} objects
+     */
+    public List<Transaction> query(TransactionQuery query) {
+        WalletHistory history = history();
+        if (history.isLoaded() || !query.hasTimeRange()) {
+            BalanceIndex index = history.balances(this);
+            if (index == null) {
+                return new ArrayList<Transaction>();
+            }
+            return index.query(query);
+        }
+        List<Transaction> transactions = fetchTransactions(query.startSeconds(), query.endSeconds());
+        if (transactions == null) {
+            return new ArrayList<Transaction>();
+        }
+        return query.apply(transactions);
+    }
 
-        tABC_CC result = core.ABC_SearchTransactions(
-                mAccount.username(), mAccount.password(),
-                id(), searchText, paTxInfo, puCount, error);
-        if (result == tABC_CC.ABC_CC_Ok) {
-            int ptrToInfo = core.longp_value(lp);
-            int count = core.intp_value(pCount);
-            Jni.ppTxInfo base = new Jni.ppTxInfo(ptrToInfo);
+    /*
+     * The transactions from start (inclusive) to end (exclusive), oldest
+     * first, in milliseconds with 0 for no limit. A loaded history hands out
+     * a view of its date index. Otherwise a bounded range is read from the
+     * core without loading the history.
+     */
+    List<Transaction> oldestFirst(long start, long end) {
+        WalletHistory history = history();
+        if (history.isLoaded() || (start == 0 && end == 0)) {
+            BalanceIndex index = history.balances(this);
+            if (index == null) {
+                return new ArrayList<Transaction>();
+            }
+            return index.range(start, end);
+        }
+        List<Transaction> transactions = fetchTransactions(
+            start > 0 ? Math.max(1, start / 1000) : 0,
+            end > 0 ? (end + 999) / 1000 : 0);
+        if (transactions == null) {
+            return new ArrayList<Transaction>();
+        }
+        Collections.reverse(transactions);
+        if (!BalanceIndex.isSorted(transactions)) {
+            Collections.sort(transactions, TransactionExporter.OLDEST_FIRST);
+        }
+        return transactions;
+    }
 
-            for (int i = count - 1; i >= 0; --i) {
-                Jni.pLong temp = new Jni.pLong(base.getPtr(base, i * 4));
-                long start = core.longp_value(temp);
-                TxInfo txi = new TxInfo(start);
+    /**
+     * Read one page of the transaction history, newest first. Start with
+     * {@link TransactionCursor#newest TransactionCursor.newest} and follow
+     * the older and newer cursors of each page. Pages stay in place while
+     * new transactions arrive. Until the history is loaded, each page reads
+     * only a time window around its cursor, and a cursor may lead to an
+     * empty page at either end of the history.
+     * @param cursor the position and size of the page
+     * @return the page, with cursors for the pages on either side
+     */
+    public TransactionCursor.Page page(TransactionCursor cursor) {
+        WalletHistory history = history();
+        if (!history.isLoaded()) {
+            if (!cursor.mHasTime) {
+                Transaction anchor = transaction(cursor.mId);
+                if (anchor != null) {
+                    cursor = TransactionCursor.after(anchor, cursor.mDirection,
+                        cursor.mPageSize, cursor.mInclusive);
+                }
+            }
+            if (cursor.mHasTime) {
+                TransactionCursor.Page page = pageWindow(cursor);
+                if (page != null) {
+                    return page;
+                }
+            }
+        }
+        BalanceIndex index = history.balances(this);
+        if (index == null) {
+            TransactionCursor.Page page = new TransactionCursor.Page();
+            page.transactions = new ArrayList<Transaction>();
+            return page;
+        }
+        return index.page(cursor);
+    }
+
+    private static final long PAGE_WINDOW_SECONDS = 24 * 60 * 60;
+    private static final long FIRST_BLOCK_SECONDS = 1231006505;
 
-                Transaction transaction = new Transaction(mAccount, this, txi);
-                listTransactions.add(transaction);
+    /*
+     * Reads a page without loading the history, by fetching a time window
+     * on the anchor's side of the cursor and widening it until it holds a
+     * full page with more beyond it, or reaches the end of the history.
+     * The window does not show what lies on the other side of the anchor,
+     * so that cursor is handed out whenever there may be something there
+     * and the page it leads to may turn out empty. Returns null if the
+     * core fails.
+     */
+    private TransactionCursor.Page pageWindow(TransactionCursor cursor) {
+        boolean older = cursor.mDirection == TransactionCursor.Direction.OLDER;
+        long now = System.currentTimeMillis() / 1000;
+        long anchor = cursor.mTime == Long.MAX_VALUE ? 0
+            : older ? (cursor.mTime + 999) / 1000 : Math.max(1, cursor.mTime / 1000);
+        long span = PAGE_WINDOW_SECONDS;
+        while (true) {
+            long start;
+            long end;
+            if (older) {
+                end = anchor;
+                start = (end == 0 ? now : end) - span;
+                if (start <= FIRST_BLOCK_SECONDS) {
+                    start = 0;
+                }
+            } else {
+                start = anchor;
+                end = start + span;
+                if (end >= now) {
+                    end = 0;
+                }
             }
-        } else {
-            AirbitzCore.loge("Error: CoreBridge.searchTransactionsIn: " + error.getSzDescription());
+            List<Transaction> window = fetchTransactions(start, end);
+            if (window == null) {
+                return null;
+            }
+            TransactionCursor.Page page = BalanceIndex.build(null, window).page(cursor);
+            boolean full = page.transactions.size() >= cursor.mPageSize;
+            if (older && ((full && page.older != null) || start == 0)) {
+                if (page.newer == null && cursor.mTime != Long.MAX_VALUE) {
+                    page.newer = reverse(cursor, page);
+                }
+                return page;
+            }
+            if (!older && ((full && page.newer != null) || end == 0)) {
+                if (page.older == null) {
+                    page.older = reverse(cursor, page);
+                }
+                return page;
+            }
+            span *= 4;
         }
-        return listTransactions;
+    }
+
+    /*
+     * The cursor for the page on the other side of a page read from a
+     * window.
+     */
+    private static TransactionCursor reverse(TransactionCursor cursor, TransactionCursor.Page page) {
+        boolean older = cursor.mDirection == TransactionCursor.Direction.OLDER;
+        TransactionCursor.Direction direction = older
+            ? TransactionCursor.Direction.NEWER : TransactionCursor.Direction.OLDER;
+        if (page.transactions.isEmpty()) {
+            if (cursor.mId == null) {
+                return new TransactionCursor(direction, cursor.mPageSize,
+                    cursor.mTime, true, null, true);
+            }
+            return new TransactionCursor(direction, cursor.mPageSize,
+                cursor.mTime, true, cursor.mId, !cursor.mInclusive);
+        }
+        // Pages are newest first
+        Transaction edge = older
+            ? page.transactions.get(0)
+            : page.transactions.get(page.transactions.size() - 1);
+        return TransactionCursor.after(edge, direction, cursor.mPageSize, false);
+    }
+
+    /**
+     * Retrieve the balance of the wallet at a point in time, from the
+     * transaction history.
+     * @param date the time to take the balance at
+     * @return the balance in satoshis including every transaction at or
+     *      before the date
+     */
+    public long balanceAt(Date date) {
+        BalanceIndex index = history().balances(this);
+        return index != null ? index.balanceAt(date.getTime()) : 0;
+    }
+
+    /**
+     * Retrieve how much the balance changed over a period.
+     * @param start the start of the period, exclusive
+     * @param end the end of the period, inclusive
+     * @return the net change in satoshis
+     */
+    public long balanceChange(Date start, Date end) {
+        BalanceIndex index = history().balances(this);
+        return index != null ? index.change(start.getTime(), end.getTime()) : 0;
+    }
+
+    /**
+     * A point on a wallet's balance chart.
+     */
+    public static class BalancePoint {
+        public final Date date;
+        public final long balance;
+
+        BalancePoint(Date date, long balance) {
+            this.date = date;
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * Retrieve the wallet's balance over a period, ready to chart. Long
+     * histories are downsampled so that no more than maxPoints are
+     * returned, keeping the peaks and dips that matter visually. Results
+     * are cached until new transactions arrive.
+     * @param start the start of the period
+     * @param end the end of the period
+     * @param maxPoints the most points to return, at least 3 to keep any
+     *      shape between the start and end balances
+     * @return the balance points in date order
+     */
+    public List<BalancePoint> balanceSeries(Date start, Date end, int maxPoints) {
+        BalanceIndex index = history().balances(this);
+        if (index == null) {
+            return new ArrayList<BalancePoint>();
+        }
+        return index.series(start.getTime(), end.getTime(), maxPoints);
+    }
+
+    /**
+     * Total the wallet's transactions by category and period, for example
+     * per top level category per month with a depth of 1 and {@link
+     * Aggregate.Period#MONTH MONTH}. Totals are kept between calls and only
+     * the transactions that changed are applied again.
+     * @param categoryDepth how many levels of the category to group by, or
+     *      0 to ignore categories
+     * @param period the length of the periods to group by
+     * @return the totals, oldest period first
+     */
+    public List<Aggregate> aggregate(int categoryDepth, Aggregate.Period period) {
+        return history().aggregate(this, categoryDepth, period);
     }
 
     /**
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Used internally only. Keeps one wallet's totals for a category depth and
+ * period up to date. Each transaction's contribution is remembered, so a
+ * single new or changed transaction is moved in O(1) through {@link #put
+ * put} or {@link #update update}. After a full reload, {@link #sync sync}
+ * still visits every transaction to compare it with its contribution, but
+ * only the groups of transactions that were added, removed or changed are
+ * touched.
+ */
+class WalletAggregator {
+    private final String mWalletId;
+    private final int mDepth;
+    private final Aggregate.Period mPeriod;
+    private final Calendar mCalendar = Calendar.getInstance();
+    private final Map<String, Contribution> mContributions = new HashMap<String, Contribution>();
+    private final Map<String, Aggregate> mGroups = new HashMap<String, Aggregate>();
+    private List<Transaction> mApplied;
+
+    /*
+     * What one transaction added to its group, kept so it can be taken out
+     * again when the transaction changes.
+     */
+    private static class Contribution {
+        final String key;
+        final Aggregate totals;
+        final long time;
+        final String category;
+
+        Contribution(String key, Aggregate totals, long time, String category) {
+            this.key = key;
+            this.totals = totals;
+            this.time = time;
+            this.category = category;
+        }
+
+        boolean matches(Transaction tx, Aggregate other) {
+            return time == tx.date().getTime()
+                && equal(category, tx.meta().category())
+                && totals.satoshiIn == other.satoshiIn
+                && totals.satoshiOut == other.satoshiOut
+                && totals.minerFees == other.minerFees
+                && totals.providerFees == other.providerFees
+                && totals.fiatInCents == other.fiatInCents
+                && totals.fiatOutCents == other.fiatOutCents;
+        }
+    }
+
+    WalletAggregator(String walletId, int depth, Aggregate.Period period) {
+        mWalletId = walletId;
+        mDepth = depth;
+        mPeriod = period;
+    }
+
+    /**
+     * Bring the totals in line with a history. Free if this is the list the
+     * totals were last synced or patched to, otherwise linear in its size.
+     */
+    synchronized void sync(List<Transaction> transactions) {
+        if (transactions == mApplied) {
+            return;
+        }
+        Set<String> seen = new HashSet<String>();
+        for (Transaction tx : transactions) {
+            seen.add(tx.id());
+            apply(tx);
+        }
+        if (seen.size() != mContributions.size()) {
+            List<String> removed = new ArrayList<String>();
+            for (String id : mContributions.keySet()) {
+                if (!seen.contains(id)) {
+                    removed.add(id);
+                }
+            }
+            for (String id : removed) {
+                remove(mContributions.remove(id));
+            }
+        }
+        mApplied = transactions;
+    }
+
+    /**
+     * Take a single new or changed transaction. If the totals were in line
+     * with the history it was patched into, they are now in line with the
+     * patched history.
+     */
+    synchronized void put(Transaction tx, List<Transaction> from, List<Transaction> to) {
+        if (mApplied != from) {
+            return;
+        }
+        apply(tx);
+        mApplied = to;
+    }
+
+    /**
+     * Move a transaction to its new group after its meta data changed.
+     */
+    synchronized void update(Transaction tx) {
+        if (mContributions.containsKey(tx.id())) {
+            apply(tx);
+        }
+    }
+
+    private void apply(Transaction tx) {
+        Aggregate totals = totals(tx);
+        Contribution old = mContributions.get(tx.id());
+        if (old != null) {
+            if (old.matches(tx, totals)) {
+                return;
+            }
+            remove(old);
+        }
+        String category = Aggregate.categoryPrefix(tx.meta().category(), mDepth);
+        long start = mPeriod.start(mCalendar, tx.date().getTime());
+        String key = start + ":" + category;
+        Aggregate group = mGroups.get(key);
+        if (group == null) {
+            group = new Aggregate(mWalletId, category, new Date(start));
+            mGroups.put(key, group);
+        }
+        group.add(totals, 1);
+        mContributions.put(tx.id(),
+            new Contribution(key, totals, tx.date().getTime(), tx.meta().category()));
+    }
+
+    private void remove(Contribution contribution) {
+        Aggregate group = mGroups.get(contribution.key);
+        if (group != null) {
+            group.add(contribution.totals, -1);
+            if (group.count <= 0) {
+                mGroups.remove(contribution.key);
+            }
+        }
+    }
+
+    private static Aggregate totals(Transaction tx) {
+        Aggregate totals = new Aggregate(null, null, null);
+        long fiat = Math.round(Math.abs(tx.meta().fiat()) * 100);
+        totals.count = 1;
+        if (tx.amount() < 0) {
+            totals.satoshiOut = -tx.amount();
+            totals.minerFees = tx.minerFees();
+            totals.providerFees = tx.providerFees();
+            totals.fiatOutCents = fiat;
+        } else {
+            totals.satoshiIn = tx.amount();
+            totals.fiatInCents = fiat;
+        }
+        return totals;
+    }
+
+    /**
+     * @return copies of the current groups, oldest period first
+     */
+    synchronized List<Aggregate> snapshot() {
+        List<Aggregate> out = new ArrayList<Aggregate>(mGroups.size());
+        for (Aggregate group : mGroups.values()) {
+            out.add(group.copy(mWalletId));
+        }
+        Collections.sort(out, Aggregate.ORDER);
+        return out;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2014, Airbitz Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms are permitted provided that
+ * the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Redistribution or use of modified source code requires the express written
+ *    permission of Airbitz Inc.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the Airbitz Project.
+ */
+package co.airbitz.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Used internally only. Holds a wallet's transaction history apart from the
+ * {@link Wallet} summary, so that it survives wallet reloads and is only
+ * loaded when somebody asks for it. A transaction the core reports on is
+ * fetched on its own on the next read and patched into the loaded history
+ * and its indexes. Changes that do not name a transaction mark the whole
+ * history stale, and it is reloaded on the next read.
+ */
+class WalletHistory {
+    private volatile List<Transaction> mTransactions;
+    private volatile int mVersion = 0;
+    private volatile int mLoadedVersion = -1;
+    private final Object mLoadLock = new Object();
+    private List<Transaction> mIndexed;
+    private TransactionIndex mIndex;
+    private List<Transaction> mBalanced;
+    private BalanceIndex mBalances;
+    private final Map<String, WalletAggregator> mAggregators =
+        new HashMap<String, WalletAggregator>();
+    private final Set<String> mPending = new LinkedHashSet<String>();
+
+    /**
+     * @return true if the history is loaded and nothing has changed since
+     */
+    boolean isLoaded() {
+        return mTransactions != null && mLoadedVersion == mVersion;
+    }
+
+    /**
+     * @return the last loaded history, which may be stale, or null
+     */
+    List<Transaction> cached() {
+        return mTransactions;
+    }
+
+    void invalidate() {
+        synchronized (this) {
+            mVersion++;
+        }
+    }
+
+    /**
+     * Note that the core reported a change to one transaction. A loaded
+     * history fetches just that transaction on the next read. Otherwise the
+     * change may land in the middle of a load, which is made stale instead.
+     */
+    synchronized void changed(String txid) {
+        if (isLoaded()) {
+            mPending.add(txid);
+        } else {
+            mVersion++;
+        }
+    }
+
+    int version() {
+        return mVersion;
+    }
+
+    /**
+     * Store a loaded history. It only counts as current if no change was
+     * reported while it was loading.
+     */
+    synchronized void update(List<Transaction> transactions, int version) {
+        mTransactions = transactions;
+        mLoadedVersion = version;
+        mPending.clear();
+    }
+
+    /**
+     * Returns the history, loading it first if it is missing or stale.
+     * Concurrent readers wait on the same load.
+     */
+    List<Transaction> get(Wallet wallet) {
+        if (!isLoaded() || hasPending()) {
+            synchronized (mLoadLock) {
+                if (!isLoaded()) {
+                    wallet.loadTransactions();
+                } else {
+                    applyPending(wallet);
+                }
+            }
+        }
+        return mTransactions;
+    }
+
+    private synchronized boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    private void applyPending(Wallet wallet) {
+        List<String> pending;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<String>(mPending);
+            mPending.clear();
+        }
+        for (String txid : pending) {
+            Transaction tx = wallet.fetchTransaction(txid);
+            if (tx == null) {
+                wallet.loadTransactions();
+                return;
+            }
+            apply(tx);
+        }
+    }
+
+    /*
+     * Swap one transaction into the history, newest first. The search index
+     * and aggregates built from the old list take just this transaction and
+     * move over to the new list. The balance index extends its running
+     * balance from where the lists first differ on its next build.
+     */
+    private synchronized void apply(Transaction tx) {
+        List<Transaction> old = mTransactions;
+        List<Transaction> transactions = new ArrayList<Transaction>(old.size() + 1);
+        boolean added = false;
+        for (Transaction t : old) {
+            if (t.id().equals(tx.id())) {
+                continue;
+            }
+            if (!added && TransactionExporter.OLDEST_FIRST.compare(t, tx) < 0) {
+                transactions.add(tx);
+                added = true;
+            }
+            transactions.add(t);
+        }
+        if (!added) {
+            transactions.add(tx);
+        }
+        if (mIndex != null && mIndexed == old) {
+            mIndex.put(tx);
+            mIndexed = transactions;
+        }
+        for (WalletAggregator aggregator : mAggregators.values()) {
+            aggregator.put(tx, old, transactions);
+        }
+        mTransactions = transactions;
+    }
+
+    /**
+     * Returns the search index for the current history, building it the
+     * first time it is needed after a load.
+     */
+    TransactionIndex index(Wallet wallet) {
+        List<Transaction> transactions = get(wallet);
+        synchronized (this) {
+            if (transactions == null) {
+                return null;
+            }
+            if (mIndex == null || mIndexed != transactions) {
+                mIndex = new TransactionIndex(transactions);
+                mIndexed = transactions;
+            }
+            return mIndex;
+        }
+    }
+
+    /**
+     * Returns the running balance for the current history. After a reload
+     * the previous index is extended rather than rebuilt.
+     */
+    BalanceIndex balances(Wallet wallet) {
+        List<Transaction> transactions = get(wallet);
+        synchronized (this) {
+            if (transactions == null) {
+                return null;
+            }
+            if (mBalances == null || mBalanced != transactions) {
+                mBalances = BalanceIndex.build(mBalances, transactions);
+                mBalanced = transactions;
+            }
+            return mBalances;
+        }
+    }
+
+    /**
+     * Returns the totals for a category depth and period, brought up to
+     * date with the current history. Aggregators are kept once created, so
+     * later calls only apply what changed.
+     */
+    List<Aggregate> aggregate(Wallet wallet, int depth, Aggregate.Period period) {
+        List<Transaction> transactions = get(wallet);
+        if (transactions == null) {
+            return new ArrayList<Aggregate>();
+        }
+        String key = depth + ":" + period;
+        WalletAggregator aggregator;
+        synchronized (this) {
+            aggregator = mAggregators.get(key);
+            if (aggregator == null) {
+                aggregator = new WalletAggregator(wallet.id(), depth, period);
+                mAggregators.put(key, aggregator);
+            }
+        }
+        aggregator.sync(transactions);
+        return aggregator.snapshot();
+    }
+
+    /**
+     * Keep the search index and aggregates current after a transaction's
+     * meta data was saved.
+     */
+    void reindex(Transaction transaction) {
+        TransactionIndex index;
+        List<WalletAggregator> aggregators;
+        synchronized (this) {
+            index = mIndex;
+            aggregators = new ArrayList<WalletAggregator>(mAggregators.values());
+        }
+        if (index != null) {
+            index.update(transaction);
+        }
+        for (WalletAggregator aggregator : aggregators) {
+            aggregator.update(transaction);
+        }
+    }
+}